@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2026, The University of Sheffield.
+ *
+ * This file is part of GATE (see http://gate.ac.uk/), and is free software,
+ * licenced under the GNU Library General Public License, Version 2, June1991.
+ *
+ * A copy of this licence is included in the distribution in the file
+ * licence.html, and is also available at http://gate.ac.uk/gate/licence.html.
+ */
+package gate.creole.gazetteer;
+
+import gate.Document;
+import gate.Factory;
+import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
+import gate.creole.ResourceInstantiationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicates of a gazetteer, each with its own temporary document, which
+ * let {@link FlexibleGazetteer} look up the rewritten texts of several input
+ * features at the same time. A pool is shared by a FlexibleGazetteer and
+ * all its duplicates, and is closed when the last of them is cleaned up.
+ */
+public class FlexGazGazetteerPool {
+
+  /** A gazetteer and the temporary document it is run over */
+  static class Worker {
+    final Gazetteer gazetteer;
+
+    /** true if the gazetteer is a duplicate to delete with the worker */
+    private final boolean ownsGazetteer;
+
+    /** the source of the pool the gazetteer was duplicated from */
+    private int generation;
+
+    private final FlexGazTemporaryDocument document =
+        new FlexGazTemporaryDocument();
+
+    Worker(Gazetteer gazetteer, boolean ownsGazetteer) {
+      this.gazetteer = gazetteer;
+      this.ownsGazetteer = ownsGazetteer;
+    }
+
+    Document getDocument(String content, Document original)
+        throws ResourceInstantiationException {
+      return document.get(content, original);
+    }
+
+    void clearDocument() {
+      document.clear();
+    }
+
+    /**
+     * Deletes the temporary document, and the gazetteer if it is a
+     * duplicate made for this worker.
+     */
+    void delete() {
+      document.delete();
+      if(ownsGazetteer) {
+        Factory.deleteResource(gazetteer);
+      }
+    }
+  }
+
+  /** Something to run with a worker of its own */
+  interface Task<T> {
+    T run(Worker worker) throws ExecutionException;
+  }
+
+  private final int size;
+
+  /** the gazetteer the workers are duplicates of */
+  private Gazetteer source;
+
+  private final LinkedBlockingQueue<Worker> idleWorkers =
+      new LinkedBlockingQueue<Worker>();
+
+  /** incremented each time the source changes */
+  private int generation = 0;
+
+  /** workers of the current source, idle or not */
+  private int workers = 0;
+
+  private ExecutorService executor;
+
+  /** number of FlexibleGazetteers using this pool */
+  private int users = 0;
+
+  public FlexGazGazetteerPool(int size) {
+    this.size = Math.max(size, 1);
+  }
+
+  /**
+   * Returns the maximum number of gazetteer duplicates, and so of lookups
+   * run at the same time.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  public synchronized Gazetteer getSource() {
+    return source;
+  }
+
+  /**
+   * Sets the gazetteer the workers are duplicates of. If it is not the
+   * current one, the duplicates of the current one are deleted, as soon
+   * as they are no longer in use.
+   */
+  public synchronized void setSource(Gazetteer source) {
+    if(source == this.source) return;
+    this.source = source;
+    generation++;
+    deleteIdleWorkers();
+    workers = 0;
+  }
+
+  /** Registers a FlexibleGazetteer using this pool */
+  synchronized void acquire() {
+    users++;
+  }
+
+  /**
+   * Unregisters a FlexibleGazetteer using this pool, and closes it if it was
+   * the last one.
+   */
+  synchronized void release() {
+    if(--users > 0) return;
+    if(executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    source = null;
+    generation++;
+    deleteIdleWorkers();
+    workers = 0;
+  }
+
+  /**
+   * Runs the tasks at the same time, each with a worker of its own, and
+   * returns their results in the order of the tasks.
+   */
+  <T> List<T> run(List<Task<T>> tasks) throws ExecutionException {
+    List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+    synchronized(this) {
+      if(source == null) { throw new ExecutionException(
+          "The gazetteer pool has no gazetteer"); }
+      if(executor == null) {
+        executor = Executors.newFixedThreadPool(size, new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Flexible gazetteer lookup");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      for(final Task<T> task : tasks) {
+        futures.add(executor.submit(new Callable<T>() {
+          @Override
+          public T call() throws Exception {
+            Worker worker = borrow();
+            try {
+              return task.run(worker);
+            } finally {
+              giveBack(worker);
+            }
+          }
+        }));
+      }
+    }
+
+    List<T> results = new ArrayList<T>(futures.size());
+    try {
+      for(Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch(InterruptedException ie) {
+      for(Future<T> future : futures) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new ExecutionInterruptedException(
+          "Interrupted while waiting for the gazetteer lookups");
+    } catch(java.util.concurrent.ExecutionException ee) {
+      for(Future<T> future : futures) {
+        future.cancel(true);
+      }
+      if(ee.getCause() instanceof ExecutionException) {
+        throw (ExecutionException)ee.getCause();
+      }
+      throw new ExecutionException(ee.getCause());
+    }
+    return results;
+  }
+
+  /**
+   * Takes an idle worker, creating one if there are fewer than the size of
+   * the pool.
+   */
+  private Worker borrow() throws ResourceInstantiationException,
+      InterruptedException {
+    Gazetteer gazetteer;
+    int workerGeneration;
+    while(true) {
+      synchronized(this) {
+        Worker worker = idleWorkers.poll();
+        if(worker != null) return worker;
+        if(workers < size) {
+          workers++;
+          gazetteer = source;
+          workerGeneration = generation;
+          break;
+        }
+      }
+      // all the workers are busy, which only lasts until one is given back
+      Worker worker = idleWorkers.poll(10, TimeUnit.MILLISECONDS);
+      if(worker != null) return worker;
+    }
+    try {
+      Worker worker =
+          new Worker((Gazetteer)Factory.duplicate(gazetteer), true);
+      worker.generation = workerGeneration;
+      return worker;
+    } catch(ResourceInstantiationException rie) {
+      synchronized(this) {
+        if(workerGeneration == generation) workers--;
+      }
+      throw rie;
+    }
+  }
+
+  /**
+   * Puts a worker back in the pool, or deletes it if the pool has moved on
+   * to another gazetteer or has been closed.
+   */
+  private void giveBack(Worker worker) {
+    worker.gazetteer.setDocument(null);
+    worker.clearDocument();
+    synchronized(this) {
+      if(worker.generation == generation) {
+        idleWorkers.add(worker);
+        return;
+      }
+    }
+    worker.delete();
+  }
+
+  private void deleteIdleWorkers() {
+    List<Worker> idle = new ArrayList<Worker>();
+    idleWorkers.drainTo(idle);
+    for(Worker worker : idle) {
+      worker.delete();
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2026, The University of Sheffield.
+ *
+ * This file is part of GATE (see http://gate.ac.uk/), and is free software,
+ * licenced under the GNU Library General Public License, Version 2, June1991.
+ *
+ * A copy of this licence is included in the distribution in the file
+ * licence.html, and is also available at http://gate.ac.uk/gate/licence.html.
+ */
+package gate.creole.gazetteer;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The annotations of an output set, indexed by offsets, type and features,
+ * so that {@link FlexibleGazetteer} can tell in constant time whether a
+ * Lookup it is about to add is already there. The annotations of a type
+ * within the range being transferred, set with {@link #setRange}, are read
+ * from the set the first time that type is looked up in that range, so that
+ * a window of a large document does not read the whole set; the ones added
+ * afterwards must be recorded with {@link #add}.
+ */
+public class FlexGazLookupIndex {
+
+  private static class Key {
+    private final long start;
+
+    private final long end;
+
+    private final String type;
+
+    private final Map<Object, Object> features;
+
+    private final int hash;
+
+    Key(long start, long end, String type, Map<Object, Object> features) {
+      this.start = start;
+      this.end = end;
+      this.type = type;
+      this.features = new HashMap<Object, Object>(features);
+      int h = (int)(start ^ (start >>> 32));
+      h = 31 * h + (int)(end ^ (end >>> 32));
+      h = 31 * h + type.hashCode();
+      this.hash = 31 * h + this.features.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(this == obj) return true;
+      if(!(obj instanceof Key)) return false;
+      Key other = (Key)obj;
+      return hash == other.hash && start == other.start && end == other.end
+          && type.equals(other.type) && features.equals(other.features);
+    }
+  }
+
+  private final AnnotationSet annotations;
+
+  /** the offsets the annotations are looked up between, or null for all */
+  private long[] range;
+
+  /**
+   * for each type read from the set, the offsets between which it was read
+   * last, or null if the whole set was read
+   */
+  private final Map<String, long[]> indexedTypes = new HashMap<String, long[]>();
+
+  private final Set<Key> keys = new HashSet<Key>();
+
+  public FlexGazLookupIndex(AnnotationSet annotations) {
+    this.annotations = annotations;
+  }
+
+  /**
+   * Sets the offsets between which the annotations looked up from now on
+   * lie. Only the annotations of the set overlapping this range are then
+   * read.
+   */
+  public void setRange(long start, long end) {
+    range = new long[] {start, end};
+  }
+
+  /**
+   * Tells if the set has an annotation with the same offsets, type and
+   * features.
+   */
+  public boolean contains(long start, long end, String type,
+      Map<Object, Object> features) {
+    index(type);
+    return keys.contains(new Key(start, end, type, features));
+  }
+
+  /**
+   * Records an annotation added to the set.
+   *
+   * @return false if the set already had an annotation with the same
+   *         offsets, type and features
+   */
+  public boolean add(long start, long end, String type,
+      Map<Object, Object> features) {
+    index(type);
+    return keys.add(new Key(start, end, type, features));
+  }
+
+  /**
+   * Reads the annotations of the type within the current range that have
+   * not been read yet. Ranges usually follow each other through the
+   * document, so only the part of the range beyond the one read last is
+   * read if they overlap.
+   */
+  private void index(String type) {
+    boolean indexed = indexedTypes.containsKey(type);
+    long[] read = indexedTypes.get(type);
+    if(range == null) {
+      if(indexed && read == null) return;
+      indexedTypes.put(type, null);
+      index(annotations.get(type));
+      return;
+    }
+    if(indexed && (read == null
+        || read[0] <= range[0] && range[1] <= read[1])) return;
+    if(indexed && read[0] <= range[0] && range[0] <= read[1]) {
+      // carry on from the end of the range read last
+      index(annotations.get(type, read[1], range[1]));
+      indexedTypes.put(type, new long[] {read[0], range[1]});
+    } else {
+      index(annotations.get(type, range[0], range[1]));
+      indexedTypes.put(type, range.clone());
+    }
+  }
+
+  private void index(AnnotationSet typeAnnotations) {
+    for(Annotation annotation : typeAnnotations) {
+      keys.add(new Key(Utils.start(annotation), Utils.end(annotation),
+          annotation.getType(), annotation.getFeatures()));
+    }
+  }
+}
@@ -10,44 +10,81 @@
  */
 package gate.creole.gazetteer;
 
-import java.util.*;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
 
+/**
+ * Maps the spans of the input annotations in a rewritten text back to their
+ * spans in the original document. Mappings must be added in document order
+ * (as the rewritten text is built), so the offsets are kept in parallel
+ * arrays that are always sorted and can be searched directly.
+ */
 public class FlexGazMappingTable {
   
-  private Map<Long, NodePosition> startMap;
-  private Map<Long, NodePosition> endMap;
+  private long[] originalStartOffsets;
+  private long[] originalEndOffsets;
   private long[] tempStartOffsets;
   private long[] tempEndOffsets;
-  private boolean updated;
   private int size;
   
   
   public FlexGazMappingTable() {
-    startMap = new HashMap<Long, NodePosition>();
-    endMap = new HashMap<Long, NodePosition>();
-    tempStartOffsets = null;
-    tempEndOffsets = null;
-    size = 0;
-    updated = false;
+    this(16);
   }
   
   
-  private void add(NodePosition mapping) {
-    startMap.put(mapping.getTempStartOffset(), mapping);
-    endMap.put(mapping.getTempEndOffset(), mapping);
-    size++;
-    updated = false;
+  public FlexGazMappingTable(int capacity) {
+    capacity = Math.max(capacity, 1);
+    originalStartOffsets = new long[capacity];
+    originalEndOffsets = new long[capacity];
+    tempStartOffsets = new long[capacity];
+    tempEndOffsets = new long[capacity];
+    size = 0;
   }
   
   
   public Collection<NodePosition> getMappings() {
-    return startMap.values();
+    return new AbstractList<NodePosition>() {
+      @Override
+      public NodePosition get(int i) {
+        if (i < 0 || i >= size) {
+          throw new IndexOutOfBoundsException(String.valueOf(i));
+        }
+        return new NodePosition(originalStartOffsets[i], originalEndOffsets[i],
+            tempStartOffsets[i], tempEndOffsets[i]);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
   }
   
   
+  /**
+   * Adds a mapping. The temporary span must not start before the one
+   * added last, nor end before it.
+   */
   public void add(long originalStart, long originalEnd, long tempStart, long tempEnd) {
-    NodePosition mapping = new NodePosition(originalStart, originalEnd, tempStart, tempEnd);
-    add(mapping);
+    if (size > 0 && (tempStart < tempStartOffsets[size - 1] ||
+        tempEnd < tempEndOffsets[size - 1])) {
+      throw new IllegalArgumentException("Mapping for " + tempStart + ", "
+          + tempEnd + " added out of order");
+    }
+    if (size == tempStartOffsets.length) {
+      int capacity = size * 2;
+      originalStartOffsets = Arrays.copyOf(originalStartOffsets, capacity);
+      originalEndOffsets = Arrays.copyOf(originalEndOffsets, capacity);
+      tempStartOffsets = Arrays.copyOf(tempStartOffsets, capacity);
+      tempEndOffsets = Arrays.copyOf(tempEndOffsets, capacity);
+    }
+    originalStartOffsets[size] = originalStart;
+    originalEndOffsets[size] = originalEnd;
+    tempStartOffsets[size] = tempStart;
+    tempEndOffsets[size] = tempEnd;
+    size++;
   }
   
   
@@ -60,25 +97,72 @@ public class FlexGazMappingTable {
     return this.size == 0;
   }
   
+
+  /** Tells if a temporary offset lies within (or at either end of) the
+   *  span of one of the mapped annotations.
+   * @param tempOffset
+   */
+  public boolean isCovered(long tempOffset) {
+    int i = lastStartingAtOrBefore(tempOffset);
+    // the spans don't overlap, so only the last one starting before the
+    // offset can reach it
+    return i >= 0 && tempEndOffsets[i] >= tempOffset;
+  }
   
-  private void update() {
-    if (updated) {
-      return;
+
+  /** Index of the last mapping whose temporary span starts at or before
+   *  the given offset, or -1 if there is none.
+   */
+  private int lastStartingAtOrBefore(long tempOffset) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (tempStartOffsets[mid] <= tempOffset) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
     }
+    return low - 1;
+  }
+  
 
-    tempStartOffsets = new long[size];
-    tempEndOffsets = new long[size];
-    
-    int i = 0;
-    for (Map.Entry<Long,NodePosition> entry: startMap.entrySet()) {
-      tempStartOffsets[i] = entry.getKey();
-      tempEndOffsets[i] = entry.getValue().getTempEndOffset();
-      i++;
+  /** Find the offset in the temporary text of an offset in the original
+   *  text, which the temporary text starts at originalBase. An offset
+   *  strictly within a mapped original annotation is moved to the start
+   *  or the end of its temporary span.
+   * @param originalOffset
+   * @param originalBase
+   * @param start true to move an offset within an annotation to its start
+   */
+  public long getTempOffset(long originalOffset, long originalBase, boolean start) {
+    // index of the last mapping whose original span starts at or before
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (originalStartOffsets[mid] <= originalOffset) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
     }
+    int i = low - 1;
     
-    Arrays.sort(tempStartOffsets);
-    Arrays.sort(tempEndOffsets);
-    updated = true;
+    if (i < 0) {
+      // nothing has been replaced before the offset
+      return originalOffset - originalBase;
+    }
+    if (originalOffset >= originalEndOffsets[i]) {
+      return tempEndOffsets[i] + originalOffset - originalEndOffsets[i];
+    }
+    if (start || originalOffset == originalStartOffsets[i]) {
+      return tempStartOffsets[i];
+    }
+    return tempEndOffsets[i];
   }
   
 
@@ -91,25 +175,12 @@ public class FlexGazMappingTable {
    */
 
   public long getBestOriginalStart(long tempStartOffset) {
-    update();
-    int i = Arrays.binarySearch(tempStartOffsets, tempStartOffset);
-
-    // According to the binarySearch API, i = - insPt - 1
-
-    if (i == -1) {
+    int i = lastStartingAtOrBefore(tempStartOffset);
+    if (i < 0) {
       // This means we've undershot the first original annotation
       return -1L;
     }
-    
-    if (i >= 0) {
-      return startMap.get(tempStartOffsets[i]).getOriginalStartOffset();
-    }
-    
-    /* Now we want the position before the insertion point 
-     * (we've already tested for undershooting the first 
-     * original annotation)   */
-    i = - i - 2;
-    return startMap.get(tempStartOffsets[i]).getOriginalStartOffset();
+    return originalStartOffsets[i];
   }
   
 
@@ -121,40 +192,34 @@ public class FlexGazMappingTable {
    * @return -1 is the error code, sorry
    */
   public long getBestOriginalEnd(long tempEndOffset) {
-    update();
-    int i = Arrays.binarySearch(tempEndOffsets, tempEndOffset);
-    
-    // Exact key is found in the array:
-    if (i >= 0) {
-      return endMap.get(tempEndOffsets[i]).getOriginalEndOffset();
+    // index of the first mapping ending at or after the offset
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (tempEndOffsets[mid] < tempEndOffset) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
     }
     
-    /* Exact key is not in the array; according
-     * to the binarySearch API, i = - insPt - 1
-     * We want the insertion point, but if that is past the 
-     * existing end of the array, then 
-     * we have overshot the first input annotation    */
-    i = - i - 1;
-    if (i >= size) {
+    if (low == size) {
+      // we have overshot the last input annotation
       return -1L;
     }
-    
-    return endMap.get(tempEndOffsets[i]).getOriginalEndOffset();
+    return originalEndOffsets[low];
   }
 
   
   public void dump() {
-    update();
     for (int i = 0 ; i < size ; i++) {
-      long start = tempStartOffsets[i];
-      long end = tempEndOffsets[i];
-      NodePosition m = startMap.get(start);
-      System.out.format("FGMT: %d, %d : o(%d, %d) t(%d, %d)%n", start, end,
-          m.getOriginalStartOffset(), m.getOriginalEndOffset(),
-          m.getTempStartOffset(), m.getTempEndOffset() );
+      System.out.format("FGMT: %d, %d : o(%d, %d) t(%d, %d)%n",
+          tempStartOffsets[i], tempEndOffsets[i],
+          originalStartOffsets[i], originalEndOffsets[i],
+          tempStartOffsets[i], tempEndOffsets[i]);
     }
-    
-    
   }
    
   
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2026, The University of Sheffield.
+ *
+ * This file is part of GATE (see http://gate.ac.uk/), and is free software,
+ * licenced under the GNU Library General Public License, Version 2, June1991.
+ *
+ * A copy of this licence is included in the distribution in the file
+ * licence.html, and is also available at http://gate.ac.uk/gate/licence.html.
+ */
+package gate.creole.gazetteer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where {@link FlexibleGazetteer} spends its time, phase by phase, and what
+ * happens to the Lookups found by the wrapped gazetteer. The times are in
+ * nanoseconds; when the features are looked up at the same time, the times
+ * of the lookups are added up, so they can exceed the elapsed time.
+ */
+public class FlexGazMetrics {
+
+  /** building the rewritten texts */
+  long rewriteNanos;
+
+  /** giving the rewritten texts to the temporary documents */
+  long documentNanos;
+
+  /** running the wrapped gazetteer, or matching the token trie */
+  long gazetteerNanos;
+
+  /** checking the Lookups are within the input annotations and mapping them */
+  long coverageNanos;
+
+  /** removing the duplicates and adding the Lookups to the document */
+  long transferNanos;
+
+  /** Lookups found in the rewritten texts */
+  long lookupsFound;
+
+  /** Lookups outside the input annotations, or that could not be mapped */
+  long lookupsFiltered;
+
+  /** Lookups the output set already had */
+  long lookupsDuplicate;
+
+  /** Lookups added to the output set */
+  long lookupsAdded;
+
+  /** segments whose Lookups were taken from the segment cache */
+  long segmentHits;
+
+  /** segments looked up by the gazetteer and added to the segment cache */
+  long segmentMisses;
+
+  /** Adds the metrics of another run to these ones */
+  public synchronized void add(FlexGazMetrics other) {
+    rewriteNanos += other.rewriteNanos;
+    documentNanos += other.documentNanos;
+    gazetteerNanos += other.gazetteerNanos;
+    coverageNanos += other.coverageNanos;
+    transferNanos += other.transferNanos;
+    lookupsFound += other.lookupsFound;
+    lookupsFiltered += other.lookupsFiltered;
+    lookupsDuplicate += other.lookupsDuplicate;
+    lookupsAdded += other.lookupsAdded;
+    segmentHits += other.segmentHits;
+    segmentMisses += other.segmentMisses;
+  }
+
+  public long getRewriteNanos() {
+    return rewriteNanos;
+  }
+
+  public long getDocumentNanos() {
+    return documentNanos;
+  }
+
+  public long getGazetteerNanos() {
+    return gazetteerNanos;
+  }
+
+  public long getCoverageNanos() {
+    return coverageNanos;
+  }
+
+  public long getTransferNanos() {
+    return transferNanos;
+  }
+
+  public long getLookupsFound() {
+    return lookupsFound;
+  }
+
+  public long getLookupsFiltered() {
+    return lookupsFiltered;
+  }
+
+  public long getLookupsDuplicate() {
+    return lookupsDuplicate;
+  }
+
+  public long getLookupsAdded() {
+    return lookupsAdded;
+  }
+
+  public long getSegmentHits() {
+    return segmentHits;
+  }
+
+  public long getSegmentMisses() {
+    return segmentMisses;
+  }
+
+  /**
+   * Returns the metrics by name, the times in milliseconds, in a map that
+   * can be stored as a document feature.
+   */
+  public synchronized Map<String, Long> toMap() {
+    Map<String, Long> map = new LinkedHashMap<String, Long>();
+    map.put("rewriteMs", rewriteNanos / 1000000);
+    map.put("documentMs", documentNanos / 1000000);
+    map.put("gazetteerMs", gazetteerNanos / 1000000);
+    map.put("coverageMs", coverageNanos / 1000000);
+    map.put("transferMs", transferNanos / 1000000);
+    map.put("lookupsFound", lookupsFound);
+    map.put("lookupsFiltered", lookupsFiltered);
+    map.put("lookupsDuplicate", lookupsDuplicate);
+    map.put("lookupsAdded", lookupsAdded);
+    map.put("segmentHits", segmentHits);
+    map.put("segmentMisses", segmentMisses);
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return toMap().toString();
+  }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2026, The University of Sheffield.
+ * 
+ * This file is part of GATE (see http://gate.ac.uk/), and is free software,
+ * licenced under the GNU Library General Public License, Version 2, June1991.
+ * 
+ * A copy of this licence is included in the distribution in the file
+ * licence.html, and is also available at http://gate.ac.uk/gate/licence.html.
+ */
+package gate.creole.gazetteer;
+
+/**
+ * Which of two overlapping input annotations {@link FlexibleGazetteer} keeps.
+ * FIRST keeps the one that starts first, LONGEST and SHORTEST compare their
+ * lengths, and PRIORITY keeps the one with the highest numeric value of the
+ * priority feature. Ties keep the one that starts first.
+ */
+public enum FlexGazOverlapPolicy {
+  FIRST, LONGEST, SHORTEST, PRIORITY
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2026, The University of Sheffield.
+ *
+ * This file is part of GATE (see http://gate.ac.uk/), and is free software,
+ * licenced under the GNU Library General Public License, Version 2, June1991.
+ *
+ * A copy of this licence is included in the distribution in the file
+ * licence.html, and is also available at http://gate.ac.uk/gate/licence.html.
+ */
+package gate.creole.gazetteer;
+
+import gate.FeatureMap;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Lookups the gazetteer found in rewritten segments of text (such as
+ * sentences), keyed by the text of the segment, so that {@link
+ * FlexibleGazetteer} does not run the gazetteer again over a segment that
+ * recurs from one document to the next. The offsets of the Lookups are
+ * relative to the start of their segment. The least recently used segments
+ * are dropped once the cache is full. A cache is shared by a
+ * FlexibleGazetteer and all its duplicates.
+ */
+public class FlexGazSegmentCache {
+
+  /** A Lookup found in a segment */
+  static class CachedLookup {
+    final int start;
+
+    final int end;
+
+    final String type;
+
+    final FeatureMap features;
+
+    CachedLookup(int start, int end, String type, FeatureMap features) {
+      this.start = start;
+      this.end = end;
+      this.type = type;
+      this.features = features;
+    }
+  }
+
+  private final Map<String, List<CachedLookup>> segments;
+
+  public FlexGazSegmentCache(final int maxSize) {
+    segments = new LinkedHashMap<String, List<CachedLookup>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, List<CachedLookup>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the Lookups found in the given segment, or null if it is not in
+   * the cache.
+   */
+  synchronized List<CachedLookup> get(String segment) {
+    return segments.get(segment);
+  }
+
+  /** Stores the Lookups found in the given segment */
+  synchronized void put(String segment, List<CachedLookup> lookups) {
+    segments.put(segment, lookups);
+  }
+
+  public synchronized int size() {
+    return segments.size();
+  }
+
+  public synchronized void clear() {
+    segments.clear();
+  }
+}
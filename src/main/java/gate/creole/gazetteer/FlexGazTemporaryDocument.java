@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2026, The University of Sheffield.
+ *
+ * This file is part of GATE (see http://gate.ac.uk/), and is free software,
+ * licenced under the GNU Library General Public License, Version 2, June1991.
+ *
+ * A copy of this licence is included in the distribution in the file
+ * licence.html, and is also available at http://gate.ac.uk/gate/licence.html.
+ */
+package gate.creole.gazetteer;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.corpora.DocumentContentImpl;
+import gate.corpora.DocumentImpl;
+import gate.creole.ResourceInstantiationException;
+
+import java.util.ArrayList;
+
+/**
+ * The hidden document a rewritten text is processed in. The document is
+ * created the first time and reused afterwards, as creating and deleting a
+ * document for every feature of every document costs more than the lookup
+ * itself on short documents.
+ */
+public class FlexGazTemporaryDocument {
+
+  private Document document;
+
+  /**
+   * Returns the temporary document holding the given content, with the
+   * encoding and markup awareness of the original document. Both are taken
+   * from the original on every call, as the reused document may be given
+   * the content of documents with other settings.
+   */
+  public Document get(String content, Document original)
+      throws ResourceInstantiationException {
+    if(document == null) {
+      FeatureMap params = Factory.newFeatureMap();
+      params.put("stringContent", content);
+      // set the appropriate encoding
+      if(original instanceof DocumentImpl) {
+        params.put("encoding", ((DocumentImpl)original).getEncoding());
+        params.put("markupAware", ((DocumentImpl)original).getMarkupAware());
+      }
+      FeatureMap features = Factory.newFeatureMap();
+      Gate.setHiddenAttribute(features, true);
+      document =
+          (Document)Factory.createResource("gate.corpora.DocumentImpl",
+              params, features);
+    } else {
+      document.setContent(new DocumentContentImpl(content));
+      if(original instanceof DocumentImpl && document instanceof DocumentImpl) {
+        ((DocumentImpl)document).setEncoding(
+            ((DocumentImpl)original).getEncoding());
+      }
+      document.setMarkupAware(original.getMarkupAware());
+    }
+    return document;
+  }
+
+  /**
+   * Removes all the annotations from the temporary document, so that it can
+   * be given new content.
+   */
+  public void clear() {
+    if(document == null) return;
+    document.getAnnotations().clear();
+    if(document.getAnnotationSetNames() == null) return;
+    for(String name : new ArrayList<String>(document.getAnnotationSetNames())) {
+      document.removeAnnotationSet(name);
+    }
+  }
+
+  /** Deletes the temporary document */
+  public void delete() {
+    if(document != null) {
+      Factory.deleteResource(document);
+      document = null;
+    }
+  }
+}
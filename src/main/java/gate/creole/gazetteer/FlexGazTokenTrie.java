@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2026, The University of Sheffield.
+ * 
+ * This file is part of GATE (see http://gate.ac.uk/), and is free software,
+ * licenced under the GNU Library General Public License, Version 2, June1991.
+ * 
+ * A copy of this licence is included in the distribution in the file
+ * licence.html, and is also available at http://gate.ac.uk/gate/licence.html.
+ */
+package gate.creole.gazetteer;
+
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ANNIEConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The entries of a gazetteer's lists, split on white space into words and
+ * stored in a trie keyed by words. It lets {@link FlexibleGazetteer} match
+ * entries directly against the feature values of consecutive input
+ * annotations, one word per annotation, instead of rewriting the document.
+ * A word only matches a whole value, so entries are always matched as whole
+ * words, whatever the wholeWordsOnly parameter of the gazetteer.
+ */
+public class FlexGazTokenTrie {
+
+  /** What a matched entry is annotated with */
+  public static class Entry {
+    private final String type;
+
+    private final FeatureMap features;
+
+    Entry(String type, FeatureMap features) {
+      this.type = type;
+      this.features = features;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    /**
+     * Returns the features of the annotation; they are shared by all the
+     * matches of the entry, so they must be copied before use.
+     */
+    public FeatureMap getFeatures() {
+      return features;
+    }
+  }
+
+  private static class Node {
+    Map<String, Node> children;
+
+    List<Entry> entries;
+  }
+
+  private final Node root = new Node();
+
+  private final boolean caseSensitive;
+
+  private int size = 0;
+
+  /**
+   * @param caseSensitive if false, words are compared ignoring their case
+   */
+  public FlexGazTokenTrie(boolean caseSensitive) {
+    this.caseSensitive = caseSensitive;
+  }
+
+  /**
+   * Builds the trie of all the entries of the gazetteer's lists.
+   * 
+   * @param definition the lists of the gazetteer
+   * @param caseSensitive if false, words are compared ignoring their case
+   */
+  public FlexGazTokenTrie(LinearDefinition definition, boolean caseSensitive) {
+    this(caseSensitive);
+    Map<LinearNode, GazetteerList> lists = definition.getListsByNode();
+    for(LinearNode node : definition.getNodes()) {
+      GazetteerList list = lists.get(node);
+      if(list == null) continue;
+      String type = node.getAnnotationType();
+      if(type == null || type.length() == 0) {
+        type = ANNIEConstants.LOOKUP_ANNOTATION_TYPE;
+      }
+      for(GazetteerNode entry : list) {
+        FeatureMap features = Factory.newFeatureMap();
+        features.put(ANNIEConstants.LOOKUP_MAJOR_TYPE_FEATURE_NAME,
+            node.getMajorType());
+        if(node.getMinorType() != null) {
+          features.put(ANNIEConstants.LOOKUP_MINOR_TYPE_FEATURE_NAME,
+              node.getMinorType());
+        }
+        if(node.getLanguage() != null) {
+          features.put(ANNIEConstants.LOOKUP_LANGUAGE_FEATURE_NAME,
+              node.getLanguage());
+        }
+        if(entry.getFeatureMap() != null) {
+          features.putAll(entry.getFeatureMap());
+        }
+        add(entry.getEntry(), new Entry(type, features));
+      }
+    }
+  }
+
+  /**
+   * Adds an entry, which is split on white space into words
+   */
+  public void add(String text, Entry entry) {
+    String[] words = text.trim().split("\\s+");
+    if(words.length == 0 || words[0].length() == 0) return;
+    Node node = root;
+    for(String word : words) {
+      if(node.children == null) {
+        node.children = new HashMap<String, Node>();
+      }
+      String key = normalise(word);
+      Node child = node.children.get(key);
+      if(child == null) {
+        child = new Node();
+        node.children.put(key, child);
+      }
+      node = child;
+    }
+    if(node.entries == null) {
+      node.entries = new ArrayList<Entry>(1);
+    }
+    node.entries.add(entry);
+    size++;
+  }
+
+  /**
+   * Returns the number of entries
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the word as it is used as a key
+   */
+  public String normalise(String word) {
+    return caseSensitive ? word : word.toLowerCase();
+  }
+
+  /**
+   * Finds every entry matching the words starting at the given position.
+   * 
+   * @param words the normalised words, null where there is no word
+   * @param start the position of the first word
+   * @param ends receives, for each entry found, the position of its last
+   *          word
+   * @param entries receives the entries found
+   */
+  public void match(String[] words, int start, List<Integer> ends,
+      List<Entry> entries) {
+    match(words, start, ends, entries, false);
+  }
+
+  /**
+   * Finds the entries matching the words starting at the given position:
+   * every one of them, or only those matching the most words.
+   * 
+   * @param words the normalised words, null where there is no word
+   * @param start the position of the first word
+   * @param ends receives, for each entry found, the position of its last
+   *          word
+   * @param entries receives the entries found
+   * @param longestMatchOnly if true, only the entries of the longest match
+   *          are found
+   */
+  public void match(String[] words, int start, List<Integer> ends,
+      List<Entry> entries, boolean longestMatchOnly) {
+    int found = entries.size();
+    Node node = root;
+    for(int i = start; i < words.length && words[i] != null; i++) {
+      if(node.children == null) return;
+      node = node.children.get(words[i]);
+      if(node == null) return;
+      if(node.entries != null) {
+        if(longestMatchOnly) {
+          // a longer match replaces the shorter ones
+          ends.subList(found, ends.size()).clear();
+          entries.subList(found, entries.size()).clear();
+        }
+        for(Entry entry : node.entries) {
+          ends.add(i);
+          entries.add(entry);
+        }
+      }
+    }
+  }
+}
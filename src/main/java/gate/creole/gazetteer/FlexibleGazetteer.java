@@ -14,17 +14,25 @@
  */
 package gate.creole.gazetteer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import gate.Annotation;
 import gate.AnnotationSet;
 import gate.Document;
 import gate.Factory;
+import gate.Factory.DuplicationContext;
 import gate.FeatureMap;
-import gate.Gate;
+import gate.Resource;
 import gate.Utils;
-import gate.corpora.DocumentImpl;
 import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.CustomDuplication;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleParameter;
@@ -56,11 +64,11 @@ import gate.util.InvalidOffsetException;
  * @version 1.0
  */
 @CreoleResource(name="Flexible Gazetteer", comment="A more flexible list lookup component.", helpURL="A more flexible list lookup component.")
-public class FlexibleGazetteer extends AbstractLanguageAnalyser {
+public class FlexibleGazetteer extends AbstractLanguageAnalyser
+    implements CustomDuplication {
   
   private static final long serialVersionUID = -1023682327651886920L;
   private static final String wrappedOutputASName = "Output";
-  private static final String wrappedInputASName = "Input";
   
   // SET TO false BEFORE CHECKING IN
   private static final boolean DEBUG = false;
@@ -84,8 +92,63 @@ public class FlexibleGazetteer extends AbstractLanguageAnalyser {
     // anything in the inputFeatureNames?
     if(inputFeatureNames == null || inputFeatureNames.size() == 0) { throw new ExecutionException(
         "No input feature names provided!"); }
-    // for each input feature, create a temporary document and run the
-    // gazetteer
+
+    Map<String, List<String>> featuresByType =
+        getFeaturesByType(inputFeatureNames);
+
+    AnnotationSet originalDocOutput = document.getAnnotations(outputASName);
+    // to leave out the Lookups the output set already has
+    FlexGazLookupIndex lookupIndex = new FlexGazLookupIndex(originalDocOutput);
+    FlexGazMetrics metrics = new FlexGazMetrics();
+    if(directTokenLookup != null && directTokenLookup.booleanValue()) {
+      fireStatusChanged("Looking up feature values...");
+      FlexGazTokenTrie trie = getTokenTrie();
+      for(Map.Entry<String, List<String>> entry : featuresByType.entrySet()) {
+        List<Annotation> annotations =
+            getInputAnnotations(inputAS, entry.getKey());
+        if(annotations.isEmpty()) continue;
+        // the Lookups lie within the input annotations
+        lookupIndex.setRange(Utils.start(annotations.get(0)),
+            Utils.end(annotations.get(annotations.size() - 1)));
+        for(String feature : entry.getValue()) {
+          lookupTokens(trie, annotations, feature, originalDocOutput,
+              lookupIndex, metrics);
+        }
+      }
+      recordMetrics(metrics);
+      fireProcessFinished();
+      return;
+    }
+
+    // the text is looked up in windows, or all at once
+    String content = document.getContent().toString();
+    Map<String, List<Annotation>> annotationsByType =
+        new LinkedHashMap<String, List<Annotation>>();
+    for(String type : featuresByType.keySet()) {
+      annotationsByType.put(type, getInputAnnotations(inputAS, type));
+    }
+    List<Annotation> segments = getSegments(inputAS);
+    List<int[]> windows = getWindows(inputAS, content.length());
+    for(int w = 0; w < windows.size(); w++) {
+      if(windows.size() > 1) {
+        fireProgressChanged(w * 100 / windows.size());
+      }
+      lookupWindow(content, windows.get(w)[0], windows.get(w)[1],
+          featuresByType, annotationsByType, segments, originalDocOutput,
+          lookupIndex, metrics);
+    }
+    recordMetrics(metrics);
+    fireProcessFinished();
+  } // END execute METHOD
+
+  /**
+   * Groups the input features by annotation type, so that the annotations
+   * of each type are sorted and filtered only once for all its features.
+   */
+  static Map<String, List<String>> getFeaturesByType(
+      List<String> inputFeatureNames) {
+    Map<String, List<String>> featuresByType =
+        new LinkedHashMap<String, List<String>>();
     for(String aFeature : inputFeatureNames) {
       // find out the feature name user wants us to use
       String[] keyVal = aFeature.split("\\.");
@@ -96,183 +159,838 @@ public class FlexibleGazetteer extends AbstractLanguageAnalyser {
       }
       // keyVal[0] = annotation type
       // keyVal[1] = feature name
-      // holds mapping for newly created annotations
-      FlexGazMappingTable mappingTable = new FlexGazMappingTable();
-      fireStatusChanged("Creating temporary Document for feature " + aFeature);
-      StringBuilder newdocString =
-          new StringBuilder(document.getContent().toString());
-      // sort annotations
-      List<Annotation> annotations =
-          Utils.inDocumentOrder(inputAS.get(keyVal[0]));
-
-      // remove duplicate annotations
-      // (this makes the reverse mapping much easier)
-      removeOverlappingAnnotations(annotations);
-      // initially no space is deducted
-      int totalDeductedSpaces = 0;
-      // now replace the document content with the value of the feature that
-      // user has provided
-      for(Annotation currentAnnotation : annotations) {
+      List<String> features = featuresByType.get(keyVal[0]);
+      if(features == null) {
+        features = new ArrayList<String>();
+        featuresByType.put(keyVal[0], features);
+      }
+      features.add(keyVal[1]);
+    }
+    return featuresByType;
+  }
+
+  /**
+   * Looks up the rewritten texts of the part of the document between the
+   * given offsets, and adds the Lookups found to the output set. The input
+   * annotations starting in the window are rewritten, the text going on to
+   * the end of the last one, so that an annotation across the end of the
+   * window is looked up in the window it starts in.
+   */
+  private void lookupWindow(String content, int from, int to,
+      Map<String, List<String>> featuresByType,
+      Map<String, List<Annotation>> annotationsByType,
+      List<Annotation> segments, AnnotationSet originalDocOutput,
+      FlexGazLookupIndex lookupIndex, FlexGazMetrics metrics)
+      throws ExecutionException {
+    // build the rewritten text of every input feature
+    fireStatusChanged("Creating temporary Documents...");
+    long startTime = System.nanoTime();
+    List<RewrittenText> texts = new ArrayList<RewrittenText>();
+    // the end of the longest text, beyond which no Lookup can be found
+    int windowEnd = to;
+    for(Map.Entry<String, List<String>> entry : featuresByType.entrySet()) {
+      List<Annotation> annotations = getAnnotationsStartingWithin(
+          annotationsByType.get(entry.getKey()), from, to);
+      int end = to;
+      if(!annotations.isEmpty()) {
+        end = Math.max(to,
+            Utils.end(annotations.get(annotations.size() - 1)).intValue());
+      }
+      windowEnd = Math.max(windowEnd, end);
+      texts.addAll(rewrite(content, from, end, entry.getKey(),
+          entry.getValue(), annotations));
+    }
+    // look up in the order the features were given
+    Collections.sort(texts, new Comparator<RewrittenText>() {
+      @Override
+      public int compare(RewrittenText t1, RewrittenText t2) {
+        return inputFeatureNames.indexOf(t1.feature)
+            - inputFeatureNames.indexOf(t2.feature);
+      }
+    });
+
+    // proceed only with the texts where there was any replacement
+    for(Iterator<RewrittenText> it = texts.iterator(); it.hasNext();) {
+      if(it.next().mappingTable.isEmpty()) it.remove();
+    }
+    metrics.rewriteNanos += System.nanoTime() - startTime;
+    final List<Annotation> windowSegments =
+        segments == null ? null : getAnnotationsWithin(segments, from, to);
+
+    // and run the gazetteer over each of them, on duplicates of the
+    // gazetteer at the same time if there are any, or in turn
+    List<List<FoundLookup>> found;
+    if(texts.size() > 1 && gazetteerPool != null
+        && gazetteerPool.getSize() > 1 && canUseGazetteerPool()) {
+      fireStatusChanged("Processing document with Gazetteer for "
+          + texts.size() + " features...");
+      List<FlexGazGazetteerPool.Task<List<FoundLookup>>> tasks =
+          new ArrayList<FlexGazGazetteerPool.Task<List<FoundLookup>>>();
+      // each lookup has metrics of its own, as they run at the same time
+      final FlexGazMetrics[] taskMetrics = new FlexGazMetrics[texts.size()];
+      for(int i = 0; i < texts.size(); i++) {
+        final RewrittenText text = texts.get(i);
+        final FlexGazMetrics textMetrics = new FlexGazMetrics();
+        taskMetrics[i] = textMetrics;
+        tasks.add(new FlexGazGazetteerPool.Task<List<FoundLookup>>() {
+          @Override
+          public List<FoundLookup> run(FlexGazGazetteerPool.Worker worker)
+              throws ExecutionException {
+            return lookup(text, windowSegments, worker, textMetrics);
+          }
+        });
+      }
+      found = gazetteerPool.run(tasks);
+      for(FlexGazMetrics textMetrics : taskMetrics) {
+        metrics.add(textMetrics);
+      }
+    } else {
+      found = new ArrayList<List<FoundLookup>>();
+      for(RewrittenText text : texts) {
+        fireStatusChanged("Processing document with Gazetteer for feature "
+            + text.feature + "...");
+        found.add(lookup(text, windowSegments, getLocalWorker(), metrics));
+      }
+    }
+
+    // the Lookups are added in the order of the features whichever way
+    // they were found
+    fireStatusChanged("Transfering new annotations to the original one...");
+    startTime = System.nanoTime();
+    lookupIndex.setRange(from, windowEnd);
+    for(int i = 0; i < texts.size(); i++) {
+      for(FoundLookup lookup : found.get(i)) {
+        // Now make sure there is no other annotation like this
+        if(lookupIndex.add(lookup.start, lookup.end, lookup.type,
+            lookup.features)) {
+          addToOriginal(originalDocOutput, lookup, texts.get(i));
+          metrics.lookupsAdded++;
+        } else {
+          metrics.lookupsDuplicate++;
+        }
+      }
+    }
+    metrics.transferNanos += System.nanoTime() - startTime;
+  }
+
+  /**
+   * Keeps the metrics of the document just processed, adds them to the
+   * totals and, if asked to, to the features of the document.
+   */
+  private void recordMetrics(FlexGazMetrics metrics) {
+    lastMetrics = metrics;
+    totalMetrics.add(metrics);
+    if(metricsFeatureName != null && metricsFeatureName.length() > 0) {
+      document.getFeatures().put(metricsFeatureName, metrics.toMap());
+    }
+  }
+
+  /**
+   * Returns the parts of the document that are looked up one after the
+   * other: the whole document if there is no window annotation type, or
+   * else spans of consecutive window annotations of at most windowSize
+   * characters (unless a single annotation is longer), the first one
+   * starting at the beginning of the document and the last one ending at
+   * its end. Each span but the first starts windowOverlap annotations
+   * before the end of the previous one, so that Lookups across the window
+   * boundaries are found.
+   */
+  private List<int[]> getWindows(AnnotationSet inputAS, int length) {
+    List<int[]> windows = new ArrayList<int[]>();
+    List<Annotation> boundaries = null;
+    if(windowAnnotationType != null && windowAnnotationType.length() > 0) {
+      boundaries = Utils.inDocumentOrder(inputAS.get(windowAnnotationType));
+    }
+    if(boundaries == null || boundaries.isEmpty()) {
+      windows.add(new int[] {0, length});
+      return windows;
+    }
+
+    int size = windowSize == null ? Integer.MAX_VALUE : windowSize.intValue();
+    int overlap =
+        windowOverlap == null ? 0 : Math.max(windowOverlap.intValue(), 0);
+    int first = 0;
+    int from = 0;
+    while(true) {
+      // the last annotation of the window
+      int last = first;
+      while(last + 1 < boundaries.size()
+          && Utils.end(boundaries.get(last + 1)) - from <= size) {
+        last++;
+      }
+      if(last + 1 >= boundaries.size()) {
+        windows.add(new int[] {from, length});
+        return windows;
+      }
+      int to = Utils.start(boundaries.get(last + 1)).intValue();
+      windows.add(new int[] {from, Math.max(to, from)});
+      first = Math.max(last + 1 - overlap, first + 1);
+      from = Math.min(Utils.start(boundaries.get(first)).intValue(), to);
+    }
+  }
+
+  /**
+   * Returns the segment annotations whose Lookups are cached, in document
+   * order and without overlapping ones, or null if the segment cache is not
+   * used.
+   */
+  private List<Annotation> getSegments(AnnotationSet inputAS) {
+    if(segmentAnnotationType == null || segmentAnnotationType.length() == 0
+        || getUsableSegmentCache() == null) return null;
+    return removeOverlappingAnnotations(
+        Utils.inDocumentOrder(inputAS.get(segmentAnnotationType)),
+        FlexGazOverlapPolicy.FIRST, null);
+  }
+
+  /**
+   * Returns the annotations of the sorted list that lie between the given
+   * offsets.
+   */
+  static List<Annotation> getAnnotationsWithin(
+      List<Annotation> annotations, int from, int to) {
+    // the annotations don't overlap, so they are sorted by end offset too
+    int low = firstStartingAt(annotations, from);
+    int end = low;
+    while(end < annotations.size() && Utils.end(annotations.get(end)) <= to) {
+      end++;
+    }
+    return annotations.subList(low, end);
+  }
+
+  /**
+   * Returns the annotations of the sorted list that start between the given
+   * offsets, or are empty and at the end offset.
+   */
+  static List<Annotation> getAnnotationsStartingWithin(
+      List<Annotation> annotations, int from, int to) {
+    int low = firstStartingAt(annotations, from);
+    int end = low;
+    while(end < annotations.size() && (Utils.start(annotations.get(end)) < to
+        || Utils.end(annotations.get(end)) <= to)) {
+      end++;
+    }
+    return annotations.subList(low, end);
+  }
+
+  /**
+   * Returns the index of the first annotation of the sorted list starting
+   * at or after the given offset.
+   */
+  private static int firstStartingAt(List<Annotation> annotations, int from) {
+    int low = 0;
+    int high = annotations.size();
+    while(low < high) {
+      int mid = (low + high) >>> 1;
+      if(Utils.start(annotations.get(mid)) < from) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The content of the document with the strings of the input annotations
+   * replaced by the values of one of their features, and the mapping between
+   * its offsets and those of the document. The text is built in a single
+   * forward pass: the text between two replaced annotations is copied as it
+   * is, followed by the value of the next annotation.
+   */
+  static class RewrittenText {
+    final String feature;
+
+    final StringBuilder text;
+
+    /** holds mapping for newly created annotations */
+    final FlexGazMappingTable mappingTable;
+
+    /** offset in the document content the text starts at */
+    final int from;
+
+    /** offset in the document content up to which the text has been built */
+    private int copiedTo;
+
+    RewrittenText(String feature, int capacity, int annotations) {
+      this(feature, capacity, annotations, 0);
+    }
+
+    /**
+     * Creates the rewritten text of the part of the content starting at the
+     * given offset.
+     */
+    RewrittenText(String feature, int capacity, int annotations, int from) {
+      this.feature = feature;
+      this.text = new StringBuilder(capacity);
+      this.mappingTable = new FlexGazMappingTable(annotations);
+      this.from = from;
+      this.copiedTo = from;
+    }
+
+    /**
+     * Returns the offset in the text of an offset in the document content.
+     * An offset within a replaced annotation is moved to the start of its
+     * value if start is true, or else to its end.
+     */
+    int getTextOffset(long offset, boolean start) {
+      return (int)mappingTable.getTempOffset(offset, from, start);
+    }
+
+    /**
+     * Replaces the content between the given offsets, which must not be
+     * before the end of the last replacement, with the value.
+     */
+    void replace(String content, int startOffset, int endOffset, String value) {
+      text.append(content, copiedTo, startOffset);
+      long newStartOffset = text.length();
+      text.append(value);
+      mappingTable.add(startOffset, endOffset, newStartOffset, text.length());
+      copiedTo = endOffset;
+    }
+
+    /**
+     * Copies the rest of the content after the last replacement.
+     */
+    void finish(String content) {
+      finish(content, content.length());
+    }
+
+    /**
+     * Copies the content after the last replacement up to the given offset.
+     */
+    void finish(String content, int to) {
+      text.append(content, copiedTo, to);
+      copiedTo = to;
+    }
+  }
+
+  /**
+   * Builds, in a single pass over the sorted annotations of the given type
+   * between the given offsets, the rewritten text of that part of the
+   * content for each of the given features.
+   */
+  static List<RewrittenText> rewrite(String content, int from, int to,
+      String type, List<String> features, List<Annotation> annotations) {
+    RewrittenText[] texts = new RewrittenText[features.size()];
+    for(int i = 0; i < texts.length; i++) {
+      texts[i] = new RewrittenText(type + "." + features.get(i),
+          to - from, annotations.size(), from);
+    }
+
+    // now replace the document content with the value of the feature that
+    // user has provided
+    for(Annotation currentAnnotation : annotations) {
+      // find the start and end offsets for this token
+      int startOffset = Utils.start(currentAnnotation).intValue();
+      int endOffset = Utils.end(currentAnnotation).intValue();
+      for(int i = 0; i < texts.length; i++) {
         // if there's no such feature, continue
-        if(!currentAnnotation.getFeatures().containsKey(keyVal[1])) continue;
-        String newTokenValue =
-            currentAnnotation.getFeatures().get(keyVal[1]).toString();
-        // if no value found for this feature
-        //if(newTokenValue == null) continue;
-        // feature value found so we need to replace it
-        // find the start and end offsets for this token
-        long startOffset = Utils.start(currentAnnotation);
-        long endOffset = Utils.end(currentAnnotation);
-        // let us find the difference between the lengths of the
-        // actual string and the newTokenValue
-        long actualLength = endOffset - startOffset;
-        long lengthDifference = actualLength - newTokenValue.length();
-        // so lets find out the new startOffset and endOffset
-        long newStartOffset = startOffset - totalDeductedSpaces;
-        long newEndOffset = newStartOffset + newTokenValue.length();
-        totalDeductedSpaces += lengthDifference;
-
-        mappingTable.add(startOffset, endOffset, newStartOffset, newEndOffset);
-        
-        // and finally replace the actual string in the document
-        // with the new document
-        newdocString.replace((int)newStartOffset, (int)newStartOffset
-            + (int)actualLength, newTokenValue);
+        Object value = currentAnnotation.getFeatures().get(features.get(i));
+        if(value == null) continue;
+        texts[i].replace(content, startOffset, endOffset, value.toString());
       }
+    }
+    for(RewrittenText text : texts) {
+      text.finish(content, to);
+    }
+    return Arrays.asList(texts);
+  }
 
-      // proceed only if there was any replacement Map
-      if(mappingTable.isEmpty()) continue;
-      
-      /* All the binary search stuff is done inside FlexGazMappingTable
-       * now, so it's guaranteed to return valid original annotation start
-       * and end offsets.       */
-      
-      // otherwise create a temporary document for the new text
-      Document tempDoc = null;
-      // update the status
-      fireStatusChanged("Processing document with Gazetteer...");
-      try {
-        FeatureMap params = Factory.newFeatureMap();
-        params.put("stringContent", newdocString.toString());
-        // set the appropriate encoding
-        if(document instanceof DocumentImpl) {
-          params.put("encoding", ((DocumentImpl)document).getEncoding());
-          params.put("markupAware", ((DocumentImpl)document).getMarkupAware());
+  /**
+   * Returns the input annotations of the given type in document order,
+   * without overlapping ones.
+   */
+  private List<Annotation> getInputAnnotations(AnnotationSet inputAS,
+      String type) {
+    return getInputAnnotations(inputAS, type, overlapPolicy,
+        overlapPriorityFeature);
+  }
+
+  /**
+   * Returns the input annotations of the given type in document order,
+   * without overlapping ones, which are chosen by the given policy.
+   */
+  static List<Annotation> getInputAnnotations(AnnotationSet inputAS,
+      String type, FlexGazOverlapPolicy overlapPolicy,
+      String overlapPriorityFeature) {
+    // sort annotations
+    List<Annotation> annotations = Utils.inDocumentOrder(inputAS.get(type));
+
+    // remove duplicate annotations
+    // (this makes the reverse mapping much easier)
+    return removeOverlappingAnnotations(annotations, overlapPolicy,
+        overlapPriorityFeature);
+  }
+
+  /**
+   * Returns the trie of the gazetteer's entries, building it the first time
+   * it is needed for the current gazetteer.
+   */
+  private FlexGazTokenTrie getTokenTrie() throws ExecutionException {
+    if(tokenTrie == null || tokenTrieGazetteer != gazetteerInst) {
+      LinearDefinition definition = gazetteerInst.getLinearDefinition();
+      if(definition == null) { throw new ExecutionException(
+          "The gazetteer does not give access to its lists, "
+              + "so direct token lookup cannot be used"); }
+      Boolean caseSensitive = gazetteerInst.getCaseSensitive();
+      tokenTrie = new FlexGazTokenTrie(definition,
+          caseSensitive == null || caseSensitive.booleanValue());
+      tokenTrieGazetteer = gazetteerInst;
+    }
+    return tokenTrie;
+  }
+
+  /**
+   * Returns the value of a boolean parameter of the gazetteer, or the given
+   * default if the gazetteer has no such parameter or it is not set.
+   */
+  private boolean getGazetteerFlag(String name, boolean defaultValue) {
+    Object value;
+    try {
+      value = gazetteerInst.getParameterValue(name);
+    } catch(ResourceInstantiationException rie) {
+      // not a parameter of this gazetteer
+      return defaultValue;
+    }
+    return value instanceof Boolean ? ((Boolean)value).booleanValue()
+        : defaultValue;
+  }
+
+  /**
+   * Matches the entries of the gazetteer directly against the values of a
+   * feature of consecutive input annotations, and adds a Lookup spanning
+   * the matched annotations for each entry found. Annotations without the
+   * feature break a match. If the longestMatchOnly parameter of the
+   * gazetteer is true, only the longest match starting at each annotation
+   * is kept.
+   */
+  private void lookupTokens(FlexGazTokenTrie trie,
+      List<Annotation> annotations, String feature,
+      AnnotationSet originalDocOutput, FlexGazLookupIndex lookupIndex,
+      FlexGazMetrics metrics) throws ExecutionException {
+    long startTime = System.nanoTime();
+    boolean longestMatchOnly = getGazetteerFlag("longestMatchOnly", false);
+    String[] words = new String[annotations.size()];
+    for(int i = 0; i < words.length; i++) {
+      Object value = annotations.get(i).getFeatures().get(feature);
+      words[i] = value == null ? null : trie.normalise(value.toString());
+    }
+
+    List<Integer> ends = new ArrayList<Integer>();
+    List<FlexGazTokenTrie.Entry> entries =
+        new ArrayList<FlexGazTokenTrie.Entry>();
+    for(int i = 0; i < words.length; i++) {
+      if(words[i] == null) continue;
+      ends.clear();
+      entries.clear();
+      trie.match(words, i, ends, entries, longestMatchOnly);
+      for(int m = 0; m < entries.size(); m++) {
+        FlexGazTokenTrie.Entry entry = entries.get(m);
+        long start = Utils.start(annotations.get(i));
+        long end = Utils.end(annotations.get(ends.get(m)));
+        metrics.lookupsFound++;
+        if(!lookupIndex.add(start, end, entry.getType(), entry.getFeatures())) {
+          metrics.lookupsDuplicate++;
+          continue;
         }
         FeatureMap features = Factory.newFeatureMap();
-        Gate.setHiddenAttribute(features, true);
-        tempDoc =
-            (Document)Factory.createResource("gate.corpora.DocumentImpl",
-                params, features);
-
-        /* Mark the temp document with the locations of the input annotations so
-         * that we can later eliminate Lookups that are out of scope.       */
-        for (NodePosition mapping : mappingTable.getMappings()) {
-          tempDoc.getAnnotations(wrappedInputASName).add(mapping.getTempStartOffset(), 
-              mapping.getTempEndOffset(), "Input", Factory.newFeatureMap());
+        features.putAll(entry.getFeatures());
+        try {
+          originalDocOutput.add(start, end, entry.getType(), features);
+        } catch(InvalidOffsetException ioe) {
+          throw new ExecutionException(ioe);
         }
-      } 
-      catch(ResourceInstantiationException rie) {
-        throw new ExecutionException("Temporary document cannot be created", rie);
-      } 
-      catch(InvalidOffsetException e) {
-        throw new ExecutionException("Error duplicating Input annotations", e);
+        metrics.lookupsAdded++;
       }
-      try {
-        // lets create the gazetteer based on the provided gazetteer name
-        gazetteerInst.setDocument(tempDoc);
-        gazetteerInst.setAnnotationSetName(wrappedOutputASName);
-        fireStatusChanged("Executing Gazetteer...");
-        gazetteerInst.execute();
-        // now the tempDoc has been looked up, we need to shift the annotations
-        // from this temp document to the original document
-        fireStatusChanged("Transfering new annotations to the original one...");
-        AnnotationSet originalDocOutput = document.getAnnotations(outputASName);
-        
-        if (DEBUG) {
-          mappingTable.dump();
+    }
+    // matching the trie takes the place of running the gazetteer
+    metrics.gazetteerNanos += System.nanoTime() - startTime;
+  }
+
+  /**
+   * A Lookup found in a rewritten text, with its offsets in the document.
+   */
+  private static class FoundLookup {
+    final long start;
+
+    final long end;
+
+    final long tempStart;
+
+    final long tempEnd;
+
+    final String type;
+
+    final FeatureMap features;
+
+    FoundLookup(long start, long end, long tempStart, long tempEnd,
+        String type, FeatureMap features) {
+      this.start = start;
+      this.end = end;
+      this.tempStart = tempStart;
+      this.tempEnd = tempEnd;
+      this.type = type;
+      this.features = features;
+    }
+  }
+
+  /**
+   * A segment of a rewritten text that was not in the segment cache, and the
+   * Lookups the gazetteer found in it, relative to its start.
+   */
+  private static class MissedSegment {
+    final int start;
+
+    final int end;
+
+    final String text;
+
+    final List<FlexGazSegmentCache.CachedLookup> lookups =
+        new ArrayList<FlexGazSegmentCache.CachedLookup>();
+
+    MissedSegment(int start, int end, String text) {
+      this.start = start;
+      this.end = end;
+      this.text = text;
+    }
+  }
+
+  /**
+   * Runs the gazetteer of the worker over a rewritten text and returns the
+   * Lookups found, with their offsets mapped back to the document. It
+   * changes nothing in the document, so that several texts can be looked up
+   * at the same time. The Lookups of the given segments that are in the
+   * segment cache are taken from it, and their text is blanked out before
+   * the gazetteer is run; the Lookups of the others are added to the cache.
+   */
+  private List<FoundLookup> lookup(RewrittenText text,
+      List<Annotation> segments, FlexGazGazetteerPool.Worker worker,
+      FlexGazMetrics metrics) throws ExecutionException {
+    FlexGazMappingTable mappingTable = text.mappingTable;
+
+    /* All the binary search stuff is done inside FlexGazMappingTable
+     * now, so it's guaranteed to return valid original annotation start
+     * and end offsets.       */
+
+    List<FoundLookup> found = new ArrayList<FoundLookup>();
+    String tempText = text.text.toString();
+    FlexGazSegmentCache cache =
+        segments == null ? null : getUsableSegmentCache();
+    List<MissedSegment> missed = null;
+    if(cache != null) {
+      long startTime = System.nanoTime();
+      missed = new ArrayList<MissedSegment>();
+      char[] blanked = null;
+      for(Annotation segment : segments) {
+        int segmentStart = text.getTextOffset(Utils.start(segment), true);
+        int segmentEnd = text.getTextOffset(Utils.end(segment), false);
+        if(segmentEnd <= segmentStart) continue;
+        String segmentText = tempText.substring(segmentStart, segmentEnd);
+        List<FlexGazSegmentCache.CachedLookup> cached = cache.get(segmentText);
+        if(cached == null) {
+          missed.add(new MissedSegment(segmentStart, segmentEnd, segmentText));
+          metrics.segmentMisses++;
+          continue;
         }
-        
-        // Now iterate over the new annotations and transfer them from the 
-        // temp document back to the real one
-        for(Annotation currentLookup : tempDoc.getAnnotations(wrappedOutputASName)) {
-          long tempStartOffset = Utils.start(currentLookup);
-          long tempEndOffset = Utils.end(currentLookup);
-
-          /* Ignore annotations that fall entirely outside the input annotations,
-           * so that we don't get dodgy Lookups outside the area covered by
-           * Tokens copied into a restricted working set by the AST PR
-           * (for example)           */
-          if (coveredByInput(tempStartOffset, tempEndOffset, tempDoc.getAnnotations(wrappedInputASName)))  {
-            long destinationStart = mappingTable.getBestOriginalStart(tempStartOffset);
-            long destinationEnd = mappingTable.getBestOriginalEnd(tempEndOffset);
-
-            boolean valid = (destinationStart >= 0) && (destinationEnd >= 0);  
-
-            if (valid) {
-              // Now make sure there is no other annotation like this
-              AnnotationSet testSet = originalDocOutput.getContained(destinationStart, destinationEnd).get(
-                  currentLookup.getType(), currentLookup.getFeatures());
-              for(Annotation annot : testSet) {
-                if(Utils.start(annot) == destinationStart
-                    && Utils.end(annot) == destinationEnd
-                    && annot.getFeatures().size() == currentLookup.getFeatures().size()) {
-                  valid = false;
-                  break;
-                }
-              }
-            }
-            
-            if(valid) {
-              addToOriginal(originalDocOutput, destinationStart, destinationEnd, 
-                  tempStartOffset, tempEndOffset, currentLookup, tempDoc);
-            }
-          } // END if coveredByInput(...)
-        } // END for OVER ALL THE Lookups
-      } 
-      finally {
-        gazetteerInst.setDocument(null);
-        if(tempDoc != null) {
-          // now remove the newDoc
-          Factory.deleteResource(tempDoc);
+        metrics.segmentHits++;
+        metrics.lookupsFound += cached.size();
+        for(FlexGazSegmentCache.CachedLookup lookup : cached) {
+          FeatureMap features = Factory.newFeatureMap();
+          features.putAll(lookup.features);
+          if(!addFound(found, segmentStart + lookup.start,
+              segmentStart + lookup.end, lookup.type, features, mappingTable)) {
+            metrics.lookupsFiltered++;
+          }
         }
+        // the gazetteer doesn't need to see the segment again
+        if(blanked == null) blanked = tempText.toCharArray();
+        Arrays.fill(blanked, segmentStart, segmentEnd, ' ');
       }
-    } // for
-    fireProcessFinished();
-  } // END execute METHOD
+      if(blanked != null) tempText = new String(blanked);
+      metrics.coverageNanos += System.nanoTime() - startTime;
+      if(tempText.trim().length() == 0) return found;
+    }
+
+    // otherwise create a temporary document for the new text
+    Document tempDoc = null;
+    long startTime = System.nanoTime();
+    try {
+      tempDoc = worker.getDocument(tempText, document);
+    } 
+    catch(ResourceInstantiationException rie) {
+      throw new ExecutionException("Temporary document cannot be created", rie);
+    } 
+    metrics.documentNanos += System.nanoTime() - startTime;
+    Gazetteer gazetteer = worker.gazetteer;
+    try {
+      // lets create the gazetteer based on the provided gazetteer name
+      gazetteer.setDocument(tempDoc);
+      gazetteer.setAnnotationSetName(wrappedOutputASName);
+      startTime = System.nanoTime();
+      gazetteer.execute();
+      metrics.gazetteerNanos += System.nanoTime() - startTime;
+      // now the tempDoc has been looked up, we need to shift the annotations
+      // from this temp document to the original document
+      
+      if (DEBUG) {
+        mappingTable.dump();
+      }
+      
+      // Now iterate over the new annotations and map them from the 
+      // temp document back to the real one
+      startTime = System.nanoTime();
+      AnnotationSet tempLookups = tempDoc.getAnnotations(wrappedOutputASName);
+      metrics.lookupsFound += tempLookups.size();
+      for(Annotation currentLookup : tempLookups) {
+        long tempStartOffset = Utils.start(currentLookup);
+        long tempEndOffset = Utils.end(currentLookup);
+        if(missed != null) {
+          cacheLookup(missed, tempStartOffset, tempEndOffset, currentLookup);
+        }
+        if(!addFound(found, tempStartOffset, tempEndOffset,
+            currentLookup.getType(), currentLookup.getFeatures(),
+            mappingTable)) {
+          metrics.lookupsFiltered++;
+        }
+      } // END for OVER ALL THE Lookups
+      if(missed != null) {
+        for(MissedSegment segment : missed) {
+          cache.put(segment.text, segment.lookups);
+        }
+      }
+      metrics.coverageNanos += System.nanoTime() - startTime;
+      return found;
+    } 
+    finally {
+      gazetteer.setDocument(null);
+      // the document is kept for the next run, without the annotations
+      worker.clearDocument();
+    }
+  }
+
+  /**
+   * Maps a Lookup of a rewritten text back to the document and adds it to
+   * the found ones.
+   *
+   * @return false if the Lookup is not within the input annotations, or
+   *         could not be mapped
+   */
+  private static boolean addFound(List<FoundLookup> found,
+      long tempStartOffset, long tempEndOffset, String type,
+      FeatureMap features, FlexGazMappingTable mappingTable) {
+    /* Ignore annotations that fall entirely outside the input annotations,
+     * so that we don't get dodgy Lookups outside the area covered by
+     * Tokens copied into a restricted working set by the AST PR
+     * (for example)           */
+    if(!coveredByInput(tempStartOffset, tempEndOffset, mappingTable)) {
+      return false;
+    }
+    long destinationStart = mappingTable.getBestOriginalStart(tempStartOffset);
+    long destinationEnd = mappingTable.getBestOriginalEnd(tempEndOffset);
+    if(destinationStart < 0 || destinationEnd < 0) return false;
+    found.add(new FoundLookup(destinationStart, destinationEnd,
+        tempStartOffset, tempEndOffset, type, features));
+    return true;
+  }
+
+  /**
+   * Records a Lookup of a rewritten text in the missed segment it lies
+   * within, if any. The segments are sorted and don't overlap.
+   */
+  private static void cacheLookup(List<MissedSegment> missed,
+      long tempStartOffset, long tempEndOffset, Annotation lookup) {
+    // the last segment starting at or before the Lookup
+    int low = 0;
+    int high = missed.size();
+    while(low < high) {
+      int mid = (low + high) >>> 1;
+      if(missed.get(mid).start <= tempStartOffset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    if(low == 0) return;
+    MissedSegment segment = missed.get(low - 1);
+    if(tempEndOffset > segment.end) return;
+    FeatureMap features = Factory.newFeatureMap();
+    features.putAll(lookup.getFeatures());
+    segment.lookups.add(new FlexGazSegmentCache.CachedLookup(
+        (int)(tempStartOffset - segment.start),
+        (int)(tempEndOffset - segment.start), lookup.getType(), features));
+  }
+
+  /**
+   * Returns the worker running the gazetteer of this PR itself, with the
+   * temporary document reused from one run to the next.
+   */
+  private FlexGazGazetteerPool.Worker getLocalWorker() {
+    if(localWorker == null || localWorker.gazetteer != gazetteerInst) {
+      if(localWorker != null) localWorker.delete();
+      localWorker = new FlexGazGazetteerPool.Worker(gazetteerInst, false);
+    }
+    return localWorker;
+  }
+
+  /**
+   * Tells if the gazetteer pool can be used with the current gazetteer. The
+   * pool of this PR is made of duplicates of its gazetteer, and a duplicate
+   * of this PR can use it as long as its own gazetteer is the duplicate it
+   * was given.
+   */
+  private boolean canUseGazetteerPool() {
+    if(existingGazetteerPool == null) {
+      gazetteerPool.setSource(gazetteerInst);
+      return true;
+    }
+    return gazetteerInst == duplicatedGazetteer
+        && gazetteerPool.getSource() == poolSource;
+  }
+
+  /**
+   * Returns the segment cache, or null if there is none or it cannot be used
+   * with the current gazetteer. The cache of this PR is emptied when its
+   * gazetteer changes, and a duplicate of this PR can use it as long as its
+   * own gazetteer is the duplicate it was given.
+   */
+  private FlexGazSegmentCache getUsableSegmentCache() {
+    if(segmentCache == null) return null;
+    if(existingSegmentCache == null) {
+      if(segmentCacheGazetteer != gazetteerInst) {
+        segmentCache.clear();
+        segmentCacheGazetteer = gazetteerInst;
+      }
+      return segmentCache;
+    }
+    return gazetteerInst == duplicatedGazetteer ? segmentCache : null;
+  }
+
+  /**
+   * Creates the gazetteer pool and the segment cache, or shares the ones of
+   * the PR this is a duplicate of.
+   */
+  @Override
+  public Resource init() throws ResourceInstantiationException {
+    if(existingGazetteerPool != null) {
+      gazetteerPool = existingGazetteerPool;
+    } else {
+      gazetteerPool = new FlexGazGazetteerPool(
+          gazetteerPoolSize == null ? 1 : gazetteerPoolSize.intValue());
+    }
+    gazetteerPool.acquire();
+    if(existingSegmentCache != null) {
+      segmentCache = existingSegmentCache;
+    } else if(segmentCacheSize != null && segmentCacheSize.intValue() > 0) {
+      segmentCache = new FlexGazSegmentCache(segmentCacheSize.intValue());
+    }
+    return super.init();
+  }
+
+  /**
+   * Deletes the temporary document, and releases the gazetteer pool, which
+   * is closed if no duplicate of this PR uses it any more.
+   */
+  @Override
+  public void cleanup() {
+    if(localWorker != null) {
+      localWorker.delete();
+      localWorker = null;
+    }
+    if(gazetteerPool != null) {
+      gazetteerPool.release();
+      gazetteerPool = null;
+    }
+    super.cleanup();
+  }
 
-  
   /**
-   * Removes the overlapping annotations. preserves the one that appears first
-   * in the list.  This assumes the list has been sorted already.
+   * Removes the overlapping annotations, keeping the one chosen by the
+   * overlap policy.  This assumes the list has been sorted already.
    * 
    * @param annotations
+   * @return the annotations that are kept, in the same order
    */
-  private void removeOverlappingAnnotations(List<Annotation> annotations) {
-    for(int i = 0; i < annotations.size() - 1; i++) {
-      Annotation annot1 = annotations.get(i);
-      Annotation annot2 = annotations.get(i + 1);
-      long annot2Start = Utils.start(annot2);
-      if(annot2Start >= Utils.start(annot1) && annot2Start < Utils.end(annot1)) {
-        annotations.remove(annot2);
-        i--;
-        continue;
+  List<Annotation> removeOverlappingAnnotations(
+      List<Annotation> annotations) {
+    return removeOverlappingAnnotations(annotations, overlapPolicy,
+        overlapPriorityFeature);
+  }
+
+  /**
+   * Removes the overlapping annotations, keeping the one chosen by the given
+   * policy.  This assumes the list has been sorted already.
+   */
+  static List<Annotation> removeOverlappingAnnotations(
+      List<Annotation> annotations, FlexGazOverlapPolicy overlapPolicy,
+      String overlapPriorityFeature) {
+    List<Annotation> kept = new ArrayList<Annotation>(annotations.size());
+    Annotation last = null;
+    for(Annotation annot : annotations) {
+      // as the list is sorted, annot can only overlap the last one kept,
+      // and if it replaces it, it cannot overlap the one kept before
+      if(last == null || Utils.start(annot) >= Utils.end(last)) {
+        kept.add(annot);
+        last = annot;
+      } else if(isPreferred(annot, last, overlapPolicy,
+          overlapPriorityFeature)) {
+        kept.set(kept.size() - 1, annot);
+        last = annot;
       }
     }
+    return kept;
+  }
+
+  /**
+   * Tells if the overlap policy prefers the given annotation to the one,
+   * starting at or before it, that it overlaps.
+   */
+  private static boolean isPreferred(Annotation annot, Annotation other,
+      FlexGazOverlapPolicy overlapPolicy, String overlapPriorityFeature) {
+    if(overlapPolicy == null) return false;
+    switch(overlapPolicy) {
+      case LONGEST:
+        return Utils.length(annot) > Utils.length(other);
+      case SHORTEST:
+        return Utils.length(annot) < Utils.length(other);
+      case PRIORITY:
+        return getPriority(annot, overlapPriorityFeature)
+            > getPriority(other, overlapPriorityFeature);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns the numeric value of the priority feature of the annotation, or
+   * negative infinity if it has none.
+   */
+  private static double getPriority(Annotation annot,
+      String overlapPriorityFeature) {
+    if(overlapPriorityFeature == null) return Double.NEGATIVE_INFINITY;
+    Object value = annot.getFeatures().get(overlapPriorityFeature);
+    if(value instanceof Number) return ((Number)value).doubleValue();
+    if(value != null) {
+      try {
+        return Double.parseDouble(value.toString().trim());
+      } catch(NumberFormatException nfe) {
+        // not a number, so no priority
+      }
+    }
+    return Double.NEGATIVE_INFINITY;
   }
 
   
   /* We try hard not to cause InvalidOffsetExceptions, but let's have
    * some better debugging info in case they happen.
    */
-  private void addToOriginal(AnnotationSet original, long originalStart, long originalEnd, 
-      long tempStart, long tempEnd, Annotation tempLookup, Document tempDoc) throws ExecutionException {
+  private void addToOriginal(AnnotationSet original, FoundLookup lookup,
+      RewrittenText text) throws ExecutionException {
     try {
-      original.add(originalStart, originalEnd, tempLookup.getType(), tempLookup.getFeatures());
+      original.add(lookup.start, lookup.end, lookup.type, lookup.features);
     }
     catch(InvalidOffsetException ioe) {
-      String errorDetails = String.format("temp %d, %d [%s]-> original %d, %d  ", tempStart, tempEnd, Utils.stringFor(tempDoc, tempLookup), 
-          originalStart, originalEnd);
+      String errorDetails = String.format("temp %d, %d [%s]-> original %d, %d  ", lookup.tempStart, lookup.tempEnd,
+          text.text.substring((int)lookup.tempStart, (int)lookup.tempEnd), lookup.start, lookup.end);
       throw new ExecutionException(errorDetails, ioe);
     }
   }
@@ -282,12 +1000,12 @@ public class FlexibleGazetteer extends AbstractLanguageAnalyser {
   /* Is this Lookup within the scope of the input annotations?  It might not be, if Token annotations
    * have been copied by AST only over the significant sections of the document.
    */
-  private boolean coveredByInput(long tempStart, long tempEnd, AnnotationSet tempInputAS) {
-    if (tempInputAS.getCovering(wrappedInputASName, tempStart, tempStart).isEmpty()) {
+  static boolean coveredByInput(long tempStart, long tempEnd, FlexGazMappingTable mappingTable) {
+    if (!mappingTable.isCovered(tempStart)) {
       return false;
     }
     // implied else
-    if (tempInputAS.getCovering(wrappedInputASName, tempEnd, tempEnd).isEmpty()) {
+    if (!mappingTable.isCovered(tempEnd)) {
       return false;
     }
     // implied else
@@ -360,6 +1078,241 @@ public class FlexibleGazetteer extends AbstractLanguageAnalyser {
     return this.inputFeatureNames;
   }
 
+  public Boolean getDirectTokenLookup() {
+    return directTokenLookup;
+  }
+
+  /**
+   * If true, the entries of the gazetteer's lists are matched directly
+   * against the feature values of consecutive input annotations, without
+   * rewriting the document or running the gazetteer. Entries are split on
+   * white space, and each word must equal the value of one annotation, so
+   * entries are always matched as whole words. The longestMatchOnly
+   * parameter of the gazetteer is honoured if it has one; otherwise every
+   * match is kept. The gazetteer must give access to its lists through
+   * {@link Gazetteer#getLinearDefinition()}; changes to the lists made after
+   * the first run are not seen.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Match the gazetteer lists directly against the feature values, without rewriting the document", defaultValue="false")
+  public void setDirectTokenLookup(Boolean directTokenLookup) {
+    this.directTokenLookup = directTokenLookup;
+  }
+
+  public FlexGazOverlapPolicy getOverlapPolicy() {
+    return overlapPolicy;
+  }
+
+  /**
+   * Which of two overlapping input annotations is used; the other one is
+   * ignored.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Which of two overlapping input annotations to use", defaultValue="FIRST")
+  public void setOverlapPolicy(FlexGazOverlapPolicy overlapPolicy) {
+    this.overlapPolicy = overlapPolicy;
+  }
+
+  public String getOverlapPriorityFeature() {
+    return overlapPriorityFeature;
+  }
+
+  /**
+   * The feature of the input annotations holding their priority, for the
+   * PRIORITY overlap policy. Annotations without a numeric value have the
+   * lowest priority.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="The numeric feature whose highest value wins for the PRIORITY overlap policy")
+  public void setOverlapPriorityFeature(String overlapPriorityFeature) {
+    this.overlapPriorityFeature = overlapPriorityFeature;
+  }
+
+  public String getWindowAnnotationType() {
+    return windowAnnotationType;
+  }
+
+  /**
+   * If set, the document is looked up in windows made of consecutive
+   * annotations of this type (such as Sentence or paragraph) in the input
+   * set, so that the temporary documents are no longer than windowSize
+   * characters instead of the whole document.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Type of the annotations the document is split on to be looked up in windows; if empty the whole document is looked up at once")
+  public void setWindowAnnotationType(String windowAnnotationType) {
+    this.windowAnnotationType = windowAnnotationType;
+  }
+
+  public Integer getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * The maximum length, in characters, of a window, unless a single window
+   * annotation is longer.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Maximum number of characters of a window", defaultValue="100000")
+  public void setWindowSize(Integer windowSize) {
+    this.windowSize = windowSize;
+  }
+
+  public Integer getWindowOverlap() {
+    return windowOverlap;
+  }
+
+  /**
+   * The number of window annotations at the end of a window that are looked
+   * up again at the start of the next one, so that Lookups across two
+   * windows are found. Lookups found in both windows are added once.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Number of window annotations shared by two consecutive windows", defaultValue="1")
+  public void setWindowOverlap(Integer windowOverlap) {
+    this.windowOverlap = windowOverlap;
+  }
+
+  public String getMetricsFeatureName() {
+    return metricsFeatureName;
+  }
+
+  /**
+   * If set, the metrics of each document are added to its features under
+   * this name, as a map from metric names to values.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Name of the document feature to store the timings and Lookup counts of the document in; if empty they are not stored")
+  public void setMetricsFeatureName(String metricsFeatureName) {
+    this.metricsFeatureName = metricsFeatureName;
+  }
+
+  /**
+   * Returns the timings and Lookup counts of the last document processed, or
+   * null if there was none.
+   */
+  public FlexGazMetrics getMetrics() {
+    return lastMetrics;
+  }
+
+  /**
+   * Returns the timings and Lookup counts of all the documents processed by
+   * this PR.
+   */
+  public FlexGazMetrics getTotalMetrics() {
+    return totalMetrics;
+  }
+
+  public Integer getGazetteerPoolSize() {
+    return gazetteerPoolSize;
+  }
+
+  /**
+   * The number of duplicates of the gazetteer used to look up the rewritten
+   * texts of several input features at the same time. The duplicates are
+   * shared with the duplicates of this PR. With 1, the gazetteer itself
+   * looks up the texts one after the other.
+   */
+  @Optional
+  @CreoleParameter(comment="Number of duplicates of the gazetteer looking up several input features at the same time", defaultValue="1")
+  public void setGazetteerPoolSize(Integer gazetteerPoolSize) {
+    this.gazetteerPoolSize = gazetteerPoolSize;
+  }
+
+  public String getSegmentAnnotationType() {
+    return segmentAnnotationType;
+  }
+
+  /**
+   * If set, and segmentCacheSize is positive, the Lookups found in the
+   * rewritten text of each annotation of this type (such as Sentence) in
+   * the input set are cached by the text, and taken from the cache when
+   * the same text is met again, in this document or a later one, instead of
+   * running the gazetteer over it. Lookups spanning two segments are found
+   * only if neither is in the cache.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Type of the annotations whose Lookups are cached by their rewritten text; if empty nothing is cached")
+  public void setSegmentAnnotationType(String segmentAnnotationType) {
+    this.segmentAnnotationType = segmentAnnotationType;
+  }
+
+  public Integer getSegmentCacheSize() {
+    return segmentCacheSize;
+  }
+
+  /**
+   * The maximum number of segment texts whose Lookups are cached, the least
+   * recently used being dropped first. The cache is shared with the
+   * duplicates of this PR. With 0, nothing is cached.
+   */
+  @Optional
+  @CreoleParameter(comment="Maximum number of segments whose Lookups are cached", defaultValue="0")
+  public void setSegmentCacheSize(Integer segmentCacheSize) {
+    this.segmentCacheSize = segmentCacheSize;
+  }
+
+  /**
+   * Returns the cache of the Lookups of the segments, or null if there is
+   * none.
+   */
+  public FlexGazSegmentCache getSegmentCache() {
+    return segmentCache;
+  }
+
+  /**
+   * Only for use by the duplication mechanism.
+   */
+  public void setExistingSegmentCache(FlexGazSegmentCache existingSegmentCache) {
+    this.existingSegmentCache = existingSegmentCache;
+  }
+
+  /**
+   * Only for use by the duplication mechanism.
+   */
+  public void setExistingGazetteerPool(FlexGazGazetteerPool existingGazetteerPool) {
+    this.existingGazetteerPool = existingGazetteerPool;
+  }
+
+  /**
+   * Duplicate this PR, sharing the gazetteer pool and the segment cache
+   * with the duplicate. The
+   * gazetteer itself is duplicated, as by the default duplication.
+   */
+  @Override
+  public Resource duplicate(DuplicationContext ctx)
+      throws ResourceInstantiationException {
+    String className = this.getClass().getName();
+    String resName = this.getName();
+    FeatureMap initParams = getInitParameterValues();
+    initParams.put("existingGazetteerPool", gazetteerPool);
+    if(segmentCache != null) {
+      initParams.put("existingSegmentCache", segmentCache);
+    }
+    FlexibleGazetteer res = (FlexibleGazetteer)Factory.createResource(
+        className, initParams, this.getFeatures(), resName);
+    FeatureMap runtimeParams = getRuntimeParameterValues();
+    if(gazetteerInst != null) {
+      runtimeParams.put("gazetteerInst",
+          Factory.duplicate(gazetteerInst, ctx));
+      if(existingGazetteerPool == null) gazetteerPool.setSource(gazetteerInst);
+      // the cache must hold the Lookups of the gazetteer being duplicated
+      getUsableSegmentCache();
+    }
+    res.setParameterValues(runtimeParams);
+    res.duplicatedGazetteer = res.gazetteerInst;
+    res.poolSource = gazetteerPool.getSource();
+    return res;
+  }
+
   public Gazetteer getGazetteerInst() {
     return this.gazetteerInst;
   }
@@ -378,5 +1331,69 @@ public class FlexibleGazetteer extends AbstractLanguageAnalyser {
   // Flexible Gazetteer parameter
   private Gazetteer gazetteerInst;
 
+  private Boolean directTokenLookup;
+
+  private FlexGazOverlapPolicy overlapPolicy;
+
+  private String overlapPriorityFeature;
+
+  /** The entries of the gazetteer, for direct token lookup */
+  private FlexGazTokenTrie tokenTrie;
+
+  /** The gazetteer the token trie was built from */
+  private Gazetteer tokenTrieGazetteer;
+
+  private String windowAnnotationType;
+
+  private Integer windowSize;
+
+  private Integer windowOverlap;
+
+  private Integer gazetteerPoolSize;
+
+  private String metricsFeatureName;
+
+  /** Metrics of the last document processed */
+  private FlexGazMetrics lastMetrics;
+
+  /** Metrics of all the documents processed */
+  private final FlexGazMetrics totalMetrics = new FlexGazMetrics();
+
+  /** The gazetteer of this PR and the document it is run on */
+  private FlexGazGazetteerPool.Worker localWorker;
+
+  /** Duplicates of the gazetteer, shared with the duplicates of this PR */
+  private FlexGazGazetteerPool gazetteerPool;
+
+  /**
+   * If this PR is a duplicate of an existing PR, the gazetteer pool of that
+   * PR
+   */
+  private FlexGazGazetteerPool existingGazetteerPool;
+
+  /** The gazetteer this PR was given when it was duplicated */
+  private Gazetteer duplicatedGazetteer;
+
+  /** The gazetteer the pool was made for when this PR was duplicated */
+  private Gazetteer poolSource;
+
+  private String segmentAnnotationType;
+
+  private Integer segmentCacheSize;
+
+  /**
+   * Lookups of the segments, shared with the duplicates of this PR
+   */
+  private FlexGazSegmentCache segmentCache;
+
+  /**
+   * If this PR is a duplicate of an existing PR, the segment cache of that
+   * PR
+   */
+  private FlexGazSegmentCache existingSegmentCache;
+
+  /** The gazetteer whose Lookups the segment cache holds */
+  private Gazetteer segmentCacheGazetteer;
+
   private java.util.List<String> inputFeatureNames;
 }
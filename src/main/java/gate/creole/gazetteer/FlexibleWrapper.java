@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2026, The University of Sheffield.
+ *
+ * This file is part of GATE (see http://gate.ac.uk/), and is free software,
+ * licenced under the GNU Library General Public License, Version 2, June1991.
+ *
+ * A copy of this licence is included in the distribution in the file
+ * licence.html, and is also available at http://gate.ac.uk/gate/licence.html.
+ */
+package gate.creole.gazetteer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.Factory.DuplicationContext;
+import gate.FeatureMap;
+import gate.LanguageAnalyser;
+import gate.Resource;
+import gate.Utils;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.CustomDuplication;
+import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import gate.util.InvalidOffsetException;
+
+/**
+ * <p>
+ * Runs a list of language analysers over the document with the strings of
+ * the input annotations replaced by the values of one of their features, in
+ * the same way as the {@link FlexibleGazetteer} runs a gazetteer. The
+ * rewritten text of each input feature is built once and put in a single
+ * temporary document, all the analysers are run over it in turn, and
+ * every annotation they create is mapped back to the original document.
+ * </p>
+ * <p>
+ * The analysers only see the rewritten text, so any annotations they need
+ * must be created by an analyser earlier in the list. The annotations of
+ * all the sets of the temporary document are added to the output set, and
+ * those outside the input annotations are ignored. As this includes any
+ * Tokens the analysers create, the types to add can be restricted with
+ * outputAnnotationTypes.
+ * </p>
+ */
+@CreoleResource(name="Flexible Wrapper", comment="Runs language analysers over the text with annotations replaced by feature values.")
+public class FlexibleWrapper extends AbstractLanguageAnalyser
+    implements CustomDuplication {
+
+  private static final long serialVersionUID = 4611585124362417315L;
+
+  @Override
+  public void execute() throws ExecutionException {
+    if(analysers == null || analysers.isEmpty()) { throw new ExecutionException(
+        "No analysers provided!"); }
+    if(document == null) { throw new ExecutionException(
+        "No document to process!"); }
+    if(inputFeatureNames == null || inputFeatureNames.size() == 0) { throw new ExecutionException(
+        "No input feature names provided!"); }
+    fireProgressChanged(0);
+
+    AnnotationSet inputAS = document.getAnnotations(inputASName);
+    Map<String, List<String>> featuresByType =
+        FlexibleGazetteer.getFeaturesByType(inputFeatureNames);
+    String content = document.getContent().toString();
+
+    // build the rewritten text of every input feature
+    fireStatusChanged("Creating temporary Documents...");
+    List<FlexibleGazetteer.RewrittenText> texts =
+        new ArrayList<FlexibleGazetteer.RewrittenText>();
+    for(Map.Entry<String, List<String>> entry : featuresByType.entrySet()) {
+      List<Annotation> annotations = FlexibleGazetteer.getInputAnnotations(
+          inputAS, entry.getKey(), overlapPolicy, overlapPriorityFeature);
+      texts.addAll(FlexibleGazetteer.rewrite(content, 0, content.length(),
+          entry.getKey(), entry.getValue(), annotations));
+    }
+    // process them in the order the features were given
+    Collections.sort(texts, new Comparator<FlexibleGazetteer.RewrittenText>() {
+      @Override
+      public int compare(FlexibleGazetteer.RewrittenText t1,
+          FlexibleGazetteer.RewrittenText t2) {
+        return inputFeatureNames.indexOf(t1.feature)
+            - inputFeatureNames.indexOf(t2.feature);
+      }
+    });
+
+    AnnotationSet originalDocOutput = document.getAnnotations(outputASName);
+    // to leave out the annotations the output set already has
+    FlexGazLookupIndex index = new FlexGazLookupIndex(originalDocOutput);
+    for(FlexibleGazetteer.RewrittenText text : texts) {
+      // proceed only if there was any replacement
+      if(text.mappingTable.isEmpty()) continue;
+      fireStatusChanged("Processing document for feature " + text.feature
+          + "...");
+      process(text, originalDocOutput, index);
+    }
+    fireProcessFinished();
+  }
+
+  /**
+   * Runs the analysers over a rewritten text and transfers the annotations
+   * they create to the output set of the document.
+   */
+  private void process(FlexibleGazetteer.RewrittenText text,
+      AnnotationSet originalDocOutput, FlexGazLookupIndex index)
+      throws ExecutionException {
+    Document tempDoc;
+    try {
+      tempDoc = temporaryDocument.get(text.text.toString(), document);
+    } catch(ResourceInstantiationException rie) {
+      throw new ExecutionException("Temporary document cannot be created", rie);
+    }
+    try {
+      for(LanguageAnalyser analyser : analysers) {
+        if(isInterrupted()) { throw new ExecutionInterruptedException(
+            "The execution of the \"" + getName()
+                + "\" flexible wrapper has been abruptly interrupted!"); }
+        analyser.setDocument(tempDoc);
+        try {
+          analyser.execute();
+        } finally {
+          analyser.setDocument(null);
+        }
+      }
+
+      fireStatusChanged("Transfering new annotations to the original one...");
+      transfer(tempDoc.getAnnotations(), text, originalDocOutput, index);
+      if(tempDoc.getAnnotationSetNames() != null) {
+        for(String name : tempDoc.getAnnotationSetNames()) {
+          transfer(tempDoc.getAnnotations(name), text, originalDocOutput,
+              index);
+        }
+      }
+    } finally {
+      // the document is kept for the next run, without the annotations
+      temporaryDocument.clear();
+    }
+  }
+
+  /**
+   * Maps the annotations of a set of the temporary document back to the
+   * document, and adds those within the input annotations that the output
+   * set does not have yet.
+   */
+  private void transfer(AnnotationSet tempAS,
+      FlexibleGazetteer.RewrittenText text, AnnotationSet originalDocOutput,
+      FlexGazLookupIndex index) throws ExecutionException {
+    FlexGazMappingTable mappingTable = text.mappingTable;
+    if(outputAnnotationTypes != null && !outputAnnotationTypes.isEmpty()) {
+      tempAS = tempAS.get(new HashSet<String>(outputAnnotationTypes));
+    }
+    for(Annotation annotation : Utils.inDocumentOrder(tempAS)) {
+      long tempStart = Utils.start(annotation);
+      long tempEnd = Utils.end(annotation);
+      if(!FlexibleGazetteer.coveredByInput(tempStart, tempEnd, mappingTable)) continue;
+      long start = mappingTable.getBestOriginalStart(tempStart);
+      long end = mappingTable.getBestOriginalEnd(tempEnd);
+      if(start < 0 || end < 0) continue;
+      if(!index.add(start, end, annotation.getType(), annotation.getFeatures()))
+        continue;
+      FeatureMap features = Factory.newFeatureMap();
+      features.putAll(annotation.getFeatures());
+      try {
+        originalDocOutput.add(start, end, annotation.getType(), features);
+      } catch(InvalidOffsetException ioe) {
+        throw new ExecutionException(String.format(
+            "temp %d, %d [%s]-> original %d, %d", tempStart, tempEnd,
+            text.text.substring((int)tempStart, (int)tempEnd), start, end),
+            ioe);
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary document, and the analysers duplicated for this
+   * PR if it is a duplicate.
+   */
+  @Override
+  public void cleanup() {
+    temporaryDocument.delete();
+    if(duplicatedAnalysers != null) {
+      for(LanguageAnalyser analyser : duplicatedAnalysers) {
+        Factory.deleteResource(analyser);
+      }
+      duplicatedAnalysers = null;
+    }
+    super.cleanup();
+  }
+
+  /**
+   * Duplicate this PR, with duplicates of the analysers, as they cannot be
+   * run over two documents at the same time.
+   */
+  @Override
+  public Resource duplicate(DuplicationContext ctx)
+      throws ResourceInstantiationException {
+    String className = this.getClass().getName();
+    String resName = this.getName();
+    FeatureMap initParams = getInitParameterValues();
+    FlexibleWrapper res = (FlexibleWrapper)Factory.createResource(className,
+        initParams, this.getFeatures(), resName);
+    FeatureMap runtimeParams = getRuntimeParameterValues();
+    if(analysers != null) {
+      List<LanguageAnalyser> duplicates = new ArrayList<LanguageAnalyser>();
+      for(LanguageAnalyser analyser : analysers) {
+        duplicates.add((LanguageAnalyser)Factory.duplicate(analyser, ctx));
+      }
+      runtimeParams.put("analysers", duplicates);
+      // the duplicates belong to the new PR, which deletes them
+      res.duplicatedAnalysers = duplicates;
+    }
+    res.setParameterValues(runtimeParams);
+    return res;
+  }
+
+  public List<LanguageAnalyser> getAnalysers() {
+    return analysers;
+  }
+
+  /**
+   * The analysers run, in this order, over the rewritten text.
+   */
+  @RunTime
+  @CreoleParameter(comment="The analysers to run over the rewritten text, in order", collectionElementType=LanguageAnalyser.class)
+  public void setAnalysers(List<LanguageAnalyser> analysers) {
+    this.analysers = analysers;
+  }
+
+  public String getOutputASName() {
+    return outputASName;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="The annotation set to be used for the generated annotations")
+  public void setOutputASName(String outputASName) {
+    this.outputASName = outputASName;
+  }
+
+  public List<String> getOutputAnnotationTypes() {
+    return outputAnnotationTypes;
+  }
+
+  /**
+   * The types of the annotations added to the output set, such as Lookup.
+   * Annotations of every type are added if this is empty.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="The types of the annotations to add to the output set, all types if empty")
+  public void setOutputAnnotationTypes(List<String> outputAnnotationTypes) {
+    this.outputAnnotationTypes = outputAnnotationTypes;
+  }
+
+  public String getInputASName() {
+    return inputASName;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="The annotation set to be used for getting features from")
+  public void setInputASName(String inputASName) {
+    this.inputASName = inputASName;
+  }
+
+  public List<String> getInputFeatureNames() {
+    return inputFeatureNames;
+  }
+
+  /**
+   * Annotation.feature names, such as Token.root, whose values replace the
+   * strings of the annotations.
+   */
+  @RunTime
+  @CreoleParameter(comment="Annotation.feature names to be considered for the analysers")
+  public void setInputFeatureNames(List<String> inputFeatureNames) {
+    this.inputFeatureNames = inputFeatureNames;
+  }
+
+  public FlexGazOverlapPolicy getOverlapPolicy() {
+    return overlapPolicy;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Which of two overlapping input annotations to use", defaultValue="FIRST")
+  public void setOverlapPolicy(FlexGazOverlapPolicy overlapPolicy) {
+    this.overlapPolicy = overlapPolicy;
+  }
+
+  public String getOverlapPriorityFeature() {
+    return overlapPriorityFeature;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="The numeric feature whose highest value wins for the PRIORITY overlap policy")
+  public void setOverlapPriorityFeature(String overlapPriorityFeature) {
+    this.overlapPriorityFeature = overlapPriorityFeature;
+  }
+
+  private List<LanguageAnalyser> analysers;
+
+  private String outputASName;
+
+  private List<String> outputAnnotationTypes;
+
+  private String inputASName;
+
+  private List<String> inputFeatureNames;
+
+  private FlexGazOverlapPolicy overlapPolicy;
+
+  private String overlapPriorityFeature;
+
+  /** The analysers duplicated for this PR, deleted with it */
+  private List<LanguageAnalyser> duplicatedAnalysers;
+
+  /** Document the analysers are run on, reused from one run to the next */
+  private final FlexGazTemporaryDocument temporaryDocument =
+      new FlexGazTemporaryDocument();
+}
@@ -116,6 +116,14 @@ public class CharMap {
 		}
 	} // put
 
+	/**
+	 * returns the number of transitions held, of both types
+	 */
+	public int size() {
+		return (itemsKeys == null ? 0 : itemsKeys.length)
+				+ (adjitemsKeys == null ? 0 : adjitemsKeys.length);
+	}
+
 	public char[] getItemsKeys() {
 		return itemsKeys;
 	}
@@ -0,0 +1,127 @@
+package gate.creole.morph;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Title: EquivalenceClasses.java
+ * </p>
+ * <p>
+ * Description: Partitions the characters used by the rules into equivalence
+ * classes. Two characters fall into the same class if no character set or
+ * literal in any rule tells them apart, so the automaton only needs one
+ * transition per class instead of one per character. Class 0 holds all the
+ * characters that are not used by any rule; no transition is ever labelled
+ * with it.
+ * </p>
+ */
+public class EquivalenceClasses {
+
+	/** class of every character, indexed by the character itself */
+	private int[] classes = new int[0];
+
+	/** the highest class number allocated so far */
+	private int lastClass = 0;
+
+	/** number of classes, including class 0, once the partition is complete */
+	private int size = 1;
+
+	/**
+	 * Refines the partition so that the characters of the given set can be
+	 * told apart from all the other characters.
+	 * 
+	 * @param set
+	 *            the characters of a character set or a single literal
+	 */
+	public void split(String set) {
+		if (set.length() == 0)
+			return;
+
+		int maxChar = 0;
+		for (int i = 0; i < set.length(); i++) {
+			maxChar = Math.max(maxChar, set.charAt(i));
+		}
+		if (maxChar >= classes.length) {
+			int[] temp = new int[maxChar + 1];
+			System.arraycopy(classes, 0, temp, 0, classes.length);
+			classes = temp;
+		}
+
+		// every class touched by this set gets one new class for its members
+		// that are in the set, the remaining members keep the old one
+		Map<Integer, Integer> newClasses = new HashMap<Integer, Integer>();
+		for (int i = 0; i < set.length(); i++) {
+			char ch = set.charAt(i);
+			Integer newClass = newClasses.get(classes[ch]);
+			if (newClass == null) {
+				newClass = ++lastClass;
+				newClasses.put(classes[ch], newClass);
+			}
+			classes[ch] = newClass;
+		}
+	}
+
+	/**
+	 * Renumbers the classes so that they are consecutive, starting at 1. Must
+	 * be called once all the sets have been added with
+	 * {@link #split(String)}.
+	 */
+	public void compact() {
+		Map<Integer, Integer> numbers = new HashMap<Integer, Integer>();
+		numbers.put(0, 0);
+		for (int i = 0; i < classes.length; i++) {
+			Integer number = numbers.get(classes[i]);
+			if (number == null) {
+				number = numbers.size();
+				numbers.put(classes[i], number);
+			}
+			classes[i] = number;
+		}
+		size = numbers.size();
+		lastClass = size - 1;
+	}
+
+	/**
+	 * Returns the class of the given character as a char, so that it can be
+	 * used directly as a transition label
+	 */
+	public char classOf(char ch) {
+		if (ch >= classes.length)
+			return 0;
+		return (char) classes[ch];
+	}
+
+	/**
+	 * Translates a literal string into the string of its character classes
+	 */
+	public String translate(String string) {
+		char[] result = new char[string.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = classOf(string.charAt(i));
+		}
+		return new String(result);
+	}
+
+	/**
+	 * Translates a character set into the set of classes of its characters,
+	 * listing each class only once
+	 */
+	public String translateSet(String set) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < set.length(); i++) {
+			char cls = classOf(set.charAt(i));
+			if (result.indexOf(String.valueOf(cls)) < 0) {
+				result.append(cls);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Returns the number of classes, including the class of unused characters
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -7,9 +7,11 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -40,17 +42,22 @@ public class Interpret {
 	/** Instance of Storage class, which is used store all the variables details */
 	private Storage variables;
 
+	/** Roots given literally by the rules, in the order of the rule file */
+	protected List<String> literalRoots = new ArrayList<String>();
+
+	/** Variables of the rules this Interpret's rules are layered on, if any */
+	private Storage inheritedVariables;
+
 	/** This variables keeps the record of available methods for the morphing */
 	private Method[] methods;
 
 	/** This variables holds the affix */
-	private String affix;
+	protected String affix;
 
 	private Pattern vPat = Pattern.compile("((VB)[DGNPZ]?)|(MD)");
 
 	private Pattern nPat = Pattern.compile("(NN)(S)*");
 
-	MorphFunctions morphInst;
 
 	List<Pattern> patterns = new ArrayList<Pattern>();
 	List<List<CharClass>> fsms = new ArrayList<List<CharClass>>();
@@ -60,28 +67,80 @@ public class Interpret {
 	 */
 	protected FSMState initialState;
 
+	/**
+	 * The character classes the rules are compiled over; transitions are
+	 * labelled with classes rather than with characters
+	 */
+	protected EquivalenceClasses charClasses;
+
+	/** Rules read from the rule file and waiting to be compiled */
+	private List<Rule> rules;
+
+	/** Tells if rules that can never fire should be looked for */
+	private boolean analyseRules = false;
+
+	/** Tells if rules that can never fire should be left out of the model */
+	private boolean pruneShadowedRules = false;
+
+	/** Tells if the cost of compiling each rule should be recorded */
+	protected boolean profileRules = false;
+
+	/** What compiling each rule cost, in the order of the rule file */
+	private List<RuleProfile> ruleProfiles = new ArrayList<RuleProfile>();
+
+	/**
+	 * The largest number of states a rule was added from at once, updated by
+	 * {@link #compileRule(RHS, PatternPart[])} when profiling
+	 */
+	protected int frontier;
+
+	/** Descriptions of the rules found to never fire */
+	private List<String> shadowedRules = new ArrayList<String>();
+
+	/**
+	 * The largest number of words a rule may match for it to be checked for
+	 * being shadowed by earlier rules
+	 */
+	private static final int MAX_RULE_WORDS = 1000;
+
 	//protected Set lastStates;
 
 	/**
 	 * It starts the actual program
 	 */
 	public void init(URL ruleFileURL) throws ResourceInstantiationException {
-		variables = new Storage();
+		variables = inheritedVariables == null ? new Storage() : new Storage(
+				inheritedVariables);
 		prepareListOfMorphMethods();
 		file = new ReadFile(ruleFileURL);
 		affix = null;
 		isDefineRulesSession = false;
 		isDefineVarSession = false;
-		morphInst = new MorphFunctions();
 
 		readProgram();
 		initialState = new FSMState(-1);
 		
 		//lastStates = new HashSet();
+		rules = new ArrayList<Rule>();
 		interpretProgram();
+		compileRules();
+		if (analyseRules || pruneShadowedRules) {
+			int shadowed = findShadowedRules();
+			if (pruneShadowedRules && shadowed > 0) {
+				resetAutomaton();
+				compileRules();
+			}
+		}
 
-		variables = null;
+		literalRoots = new ArrayList<String>();
+		for (Rule rule : rules) {
+			String root = rule.rhs.getAction() == null ? null : rule.rhs
+					.getAction().getLiteralRoot();
+			if (!rule.pruned && root != null)
+				literalRoots.add(root);
+		}
 		file = null;
+		rules = null;
 		//lastStates = null;
 	}
 	
@@ -93,12 +152,125 @@ public class Interpret {
     affix = null;
     isDefineRulesSession = false;
     isDefineVarSession = false;
-    morphInst = new MorphFunctions();
     
     // copy shared state
     fsms = existingInterpret.fsms;
     patterns = existingInterpret.patterns;
     initialState = existingInterpret.initialState;
+    charClasses = existingInterpret.charClasses;
+    variables = existingInterpret.variables;
+    literalRoots = existingInterpret.literalRoots;
+	}
+
+	/**
+	 * Makes the variables of another rule file available to the rules read by
+	 * {@link #init(URL)}, which may also redefine them. Used to compile
+	 * overlay rules on top of a base model.
+	 */
+	public void setInheritedVariables(Storage inheritedVariables) {
+		this.inheritedVariables = inheritedVariables;
+	}
+
+	/**
+	 * Returns the roots that the rules give literally, such as those of
+	 * irregular forms, in the order of the rule file
+	 */
+	public List<String> getLiteralRoots() {
+		return literalRoots;
+	}
+
+	/**
+	 * Returns the variables defined by the rules, including inherited ones
+	 */
+	public Storage getVariables() {
+		return variables;
+	}
+
+	/**
+	 * Returns a new Interpret of the same class sharing the compiled rules of
+	 * this one, which can be used on another thread
+	 */
+	public Interpret copy() {
+		Interpret copy;
+		try {
+			copy = getClass().getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not copy " + getClass().getName(), e);
+		}
+		copy.init(this);
+		return copy;
+	}
+
+	/**
+	 * A rule of the rule file together with its normalised alternatives
+	 */
+	class Rule {
+		RHS rhs;
+		String category;
+		String text;
+		int line;
+		boolean pruned = false;
+		long parseNanos;
+		List<PatternPart[]> alternatives = new ArrayList<PatternPart[]>();
+	}
+
+	/**
+	 * Asks {@link #init(URL)} to look for rules that can never fire, because
+	 * they duplicate an earlier rule or because earlier rules match every
+	 * word they match. The rules found are available from
+	 * {@link #getShadowedRules()}.
+	 */
+	public void setAnalyseRules(boolean analyseRules) {
+		this.analyseRules = analyseRules;
+	}
+
+	/**
+	 * Asks {@link #init(URL)} to leave the rules that can never fire out of
+	 * the compiled model. This does not change the result for any word.
+	 */
+	public void setPruneShadowedRules(boolean pruneShadowedRules) {
+		this.pruneShadowedRules = pruneShadowedRules;
+	}
+
+	/**
+	 * Asks {@link #init(URL)} to record, for each rule, the time spent
+	 * compiling it and how much it added to the automaton. The profiles are
+	 * available from {@link #getRuleProfiles()}.
+	 */
+	public void setProfileRules(boolean profileRules) {
+		this.profileRules = profileRules;
+	}
+
+	/**
+	 * Returns what compiling each rule cost, if profiling was asked for, in
+	 * the order of the rule file
+	 */
+	public List<RuleProfile> getRuleProfiles() {
+		return ruleProfiles;
+	}
+
+	/**
+	 * Returns the number of states and the number of transitions of the
+	 * automaton. Only used when profiling, so it may be slow.
+	 */
+	protected int[] measureAutomaton() {
+		int states = 1;
+		int transitions = initialState.getTransitionFunction().size();
+		for (List<CharClass> fs : fsms) {
+			states += fs.size();
+			for (CharClass cc : fs) {
+				transitions += cc.st.getTransitionFunction().size();
+			}
+		}
+		return new int[] { states, transitions };
+	}
+
+	/**
+	 * Returns a description, with line numbers, of every rule found to never
+	 * fire
+	 */
+	public List<String> getShadowedRules() {
+		return shadowedRules;
 	}
 
 	class CharClass {
@@ -154,7 +326,21 @@ public class Interpret {
 		return newStates;
 	}
 
-	private boolean validCategory(String category) {
+	/**
+	 * Tells if any rule could apply to the given word. This is not the case
+	 * when the word contains a character that no rule uses, and the morpher
+	 * would return the word unchanged.
+	 */
+	public boolean isAnalysable(String word) {
+		for (int i = 0; i < word.length(); i++) {
+			if (charClasses.classOf(word.charAt(i)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected boolean validCategory(String category) {
 		if (category.equals("*")) {
 			return true;
 		} else if (vPat.matcher(category).matches()) {
@@ -170,43 +356,77 @@ public class Interpret {
 	 */
 	public String runMorpher(String word, String category) {
 		affix = null;
+		patternIndex = -1;
 		if(!validCategory(category)) {
 			return word;
 		}
 		
 		foundRule = false;
+		SortedSet<RHS> rhses = findRHSes(word);
+		if (rhses.isEmpty()) {
+			return word;
+		}
+
+		return executeRHSes(rhses, word, category);
+	}
+
+	/**
+	 * Returns every analysis of the word, whatever its category: the root and
+	 * affix given by each rule whose pattern matches the word, in the order
+	 * of the rule file. The word is read through the automaton only once.
+	 */
+	public List<MorphAnalysis> runMorpherAll(String word) {
+		List<MorphAnalysis> analyses = new ArrayList<MorphAnalysis>();
+		for (RHS rhs : findRHSes(word)) {
+			MorphAction action = rhs.getAction();
+			Pattern p = patterns.get(rhs.getPatternIndex());
+			// a pruned rule never fires
+			if (action == null || p == null || !p.matcher(word).matches())
+				continue;
+			analyses.add(new MorphAnalysis(action.getRoot(word), action
+					.getAffix(word), rhs.getCategory(), rhs.getPatternIndex()));
+		}
+		return analyses;
+	}
+
+	/**
+	 * Reads the word through the automaton and returns the RHSes of all the
+	 * rules that may match it, in rule order. Their patterns still have to
+	 * be checked.
+	 */
+	protected SortedSet<RHS> findRHSes(String word) {
+		SortedSet<RHS> rhses = new TreeSet<RHS>(RHS_ORDER);
 		Set<FSMState> states = new HashSet<FSMState>();
 		states.add(initialState);
 		for (int i = 0; i < word.length(); i++) {
-			char ch = word.charAt(i);
+			char ch = charClasses.classOf(word.charAt(i));
 			states = getStates(ch, states);
 			if (states.isEmpty()) {
-				return word;
+				return rhses;
 			}
 
 		}
 
 		// we have all states here
 		// we obtain all RHSes
-		SortedSet<RHS> rhses = new TreeSet<RHS>(new Comparator<RHS>() {
-      @Override
-      public int compare(RHS r1, RHS r2) {
-        return r1.getPatternIndex() - r2.getPatternIndex();
-      }
-    });
-    
 		Iterator<FSMState> iter = states.iterator();
 		while (iter.hasNext()) {
 			FSMState st = iter.next();
 			rhses.addAll(st.getRHSes());
 		}
+		return rhses;
+	}
 
-		if (rhses.isEmpty()) {
-			return word;
+	/**
+	 * Orders RHSes by the position of their rule in the rule file, so that
+	 * the earliest matching rule wins
+	 */
+	protected static final Comparator<RHS> RHS_ORDER = new Comparator<RHS>() {
+		@Override
+		public int compare(RHS r1, RHS r2) {
+			return r1.getPatternIndex() - r2.getPatternIndex();
 		}
-
-		return executeRHSes(rhses, word, category);
-	}
+	};
 
 	protected int patternIndex = -1;
 	public int getPatternIndex() {
@@ -246,40 +466,17 @@ public class Interpret {
 	private String executeRule(String word, RHS rhs) {
 		Pattern p = patterns.get(rhs.getPatternIndex());
 
-		short methodIndex = rhs.getMethodIndex();
-		if (!p.matcher(word).matches()) {
+		// a pruned rule never fires
+		if (p == null || !p.matcher(word).matches()) {
 			foundRule = false;
 			return word;
 		}
 
-		// call the appropriate function
-		String[] parameters = rhs.getParameters();
-
-		// set the given word in that morph program
-		morphInst.setInput(word);
-		String answer = null;
-		switch (methodIndex) {
-		case ParsingFunctions.IRREG_STEM:
-			answer = morphInst.irreg_stem(parameters[0], parameters[1]);
-			break;
-		case ParsingFunctions.NULL_STEM:
-			answer = morphInst.null_stem();
-			break;
-		case ParsingFunctions.SEMIREG_STEM:
-			answer = morphInst.semi_reg_stem(Integer.parseInt(parameters[0]),
-					parameters[1]);
-			break;
-		case ParsingFunctions.STEM:
-			answer = morphInst.stem(Integer.parseInt(parameters[0]),
-					parameters[1], parameters[2]);
-			break;
-		default:
-			answer = null;
-			break;
-		}
+		MorphAction action = rhs.getAction();
+		String answer = action == null ? null : action.getRoot(word);
 		
 		if(answer != null) {
-			this.affix = morphInst.getAffix();
+			this.affix = action.getAffix(word);
 			foundRule = true;
 			return answer;
 		} else {
@@ -517,37 +714,272 @@ public class Interpret {
 					+ "line " + file.getPointer() + " : " + line);
 		}
 
+		long parseStart = System.nanoTime();
 		RHS rhs = new RHS(ruleParts[1], category, (short)patterns.size());
+		Rule rule = new Rule();
+		rule.rhs = rhs;
+		rule.category = category;
+		rule.text = line;
+		rule.line = file.getPointer();
 		ruleParts[0] = ruleParts[0].substring(i + 1, ruleParts[0].length())
 				.trim();
 		String regExp = ParsingFunctions.convertToRegExp(
 				ruleParts[0], variables);
 		patterns.add(Pattern.compile(regExp));
-		String[] rules = ParsingFunctions.normlizePattern(regExp);
-		for (int m = 0; m < rules.length; m++) {
-			Set<Set<FSMState>> lss = new HashSet<Set<FSMState>>();
-			lss.clear();
-			Set<FSMState> newSet = new HashSet<FSMState>();
-			newSet.add(initialState);
-			lss.add(newSet);
-			PatternPart parts[] = ParsingFunctions
-					.getPatternParts(rules[m].trim());
-			for (int j = 0; j < parts.length; j++) {
-				lss = ParsingFunctions.createFSMs(parts[j].getPartString(), parts[j].getType(), lss, this);
+		String[] alternatives = ParsingFunctions.normlizePattern(regExp);
+		for (int m = 0; m < alternatives.length; m++) {
+			rule.alternatives.add(ParsingFunctions
+					.getPatternParts(alternatives[m].trim()));
+		}
+		rule.parseNanos = System.nanoTime() - parseStart;
+		rules.add(rule);
+	}
+
+	/**
+	 * Works out the character classes used by all the rules that have been
+	 * read and then compiles every rule, with its parts translated into those
+	 * classes, in the order of the rule file.
+	 */
+	private void compileRules() {
+		charClasses = new EquivalenceClasses();
+		for (Rule rule : rules) {
+			if (rule.pruned)
+				continue;
+			for (PatternPart[] parts : rule.alternatives) {
+				for (int j = 0; j < parts.length; j++) {
+					String string = parts[j].getPartString();
+					if (isSetPart(parts[j].getType())) {
+						charClasses.split(string);
+					} else {
+						for (int k = 0; k < string.length(); k++) {
+							charClasses.split(string.substring(k, k + 1));
+						}
+					}
+				}
 			}
-			Iterator<Set<FSMState>> iter = lss.iterator();
-			while (iter.hasNext()) {
-				Set<FSMState> set = iter.next();
-				Iterator<FSMState> subIter = set.iterator();
-				while (subIter.hasNext()) {
-					FSMState st = subIter.next();
-					st.addRHS(rhs);
+		}
+		charClasses.compact();
+
+		ruleProfiles = new ArrayList<RuleProfile>();
+		for (Rule rule : rules) {
+			if (rule.pruned)
+				continue;
+			int[] before = null;
+			long compileStart = 0;
+			if (profileRules) {
+				before = measureAutomaton();
+				frontier = 0;
+				compileStart = System.nanoTime();
+			}
+			for (PatternPart[] parts : rule.alternatives) {
+				PatternPart[] classParts = new PatternPart[parts.length];
+				for (int j = 0; j < parts.length; j++) {
+					String string = parts[j].getPartString();
+					int type = parts[j].getType();
+					classParts[j] = new PatternPart(isSetPart(type)
+							? charClasses.translateSet(string)
+							: charClasses.translate(string), type);
 				}
+				compileRule(rule.rhs, classParts);
+			}
+			if (profileRules) {
+				RuleProfile profile = new RuleProfile();
+				profile.compileNanos = System.nanoTime() - compileStart;
+				int[] after = measureAutomaton();
+				profile.line = rule.line;
+				profile.text = rule.text;
+				profile.parseNanos = rule.parseNanos;
+				profile.alternatives = rule.alternatives.size();
+				profile.maxFrontier = frontier;
+				profile.statesAdded = after[0] - before[0];
+				profile.transitionsAdded = after[1] - before[1];
+				ruleProfiles.add(profile);
 			}
 		}
 		//drawFSM();
 	}
 
+	/**
+	 * Discards the compiled automaton so that the rules can be compiled again
+	 */
+	protected void resetAutomaton() {
+		initialState = new FSMState(-1);
+		fsms = new ArrayList<List<CharClass>>();
+	}
+
+	/**
+	 * Looks for rules that can never fire. A rule is a duplicate if an earlier
+	 * rule has the same pattern and applies to all of its categories. A rule
+	 * that matches a limited number of words is shadowed if, for each of its
+	 * words and categories, the compiled model fires an earlier rule. Rules
+	 * with repeated parts are only checked for duplicates.
+	 * 
+	 * @return the number of rules that can never fire
+	 */
+	private int findShadowedRules() {
+		shadowedRules.clear();
+		int found = 0;
+		Map<String, Rule> seen = new HashMap<String, Rule>();
+		for (int r = 0; r < rules.size(); r++) {
+			Rule rule = rules.get(r);
+			String pattern = patterns.get(r).pattern();
+			Rule original = seen.get(rule.category + " " + pattern);
+			if (original == null)
+				original = seen.get("* " + pattern);
+			if (original != null) {
+				shadowedRules.add("line " + rule.line + " : " + rule.text.trim()
+						+ " duplicates line " + original.line);
+			} else {
+				seen.put(rule.category + " " + pattern, rule);
+				SortedSet<Integer> shadowing = findShadowingRules(rule);
+				if (shadowing == null)
+					continue;
+				StringBuilder lines = new StringBuilder();
+				for (Integer index : shadowing) {
+					if (lines.length() > 0)
+						lines.append(", ");
+					lines.append(rules.get(index).line);
+				}
+				shadowedRules.add("line " + rule.line + " : " + rule.text.trim()
+						+ " is shadowed by line " + lines);
+			}
+
+			found++;
+			if (pruneShadowedRules) {
+				// the rule is still in the automaton the later rules are
+				// checked with, so its pattern is only released at the end
+				rule.pruned = true;
+			}
+		}
+		for (int r = 0; r < rules.size(); r++) {
+			if (rules.get(r).pruned) {
+				// the compiled pattern of a rule that never fires is not needed
+				patterns.set(r, null);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the earlier rules that fire instead of the given rule, for every
+	 * word the rule matches and every category it applies to.
+	 * 
+	 * @return the indexes of those rules, or null if the rule fires for at
+	 *         least one word or matches too many words to be checked
+	 */
+	private SortedSet<Integer> findShadowingRules(Rule rule) {
+		List<String> words = new ArrayList<String>();
+		for (PatternPart[] parts : rule.alternatives) {
+			if (!expandRule(parts, words))
+				return null;
+		}
+
+		String[] categories;
+		if (rule.rhs.isVerb() && rule.rhs.isNoun()) {
+			categories = new String[] { "*", "VB", "NN" };
+		} else if (rule.rhs.isVerb()) {
+			categories = new String[] { "*", "VB" };
+		} else if (rule.rhs.isNoun()) {
+			categories = new String[] { "*", "NN" };
+		} else {
+			categories = new String[] { "*" };
+		}
+
+		SortedSet<Integer> shadowing = new TreeSet<Integer>();
+		for (String word : words) {
+			for (String category : categories) {
+				runMorpher(word, category);
+				if (patternIndex < 0
+						|| patternIndex >= rule.rhs.getPatternIndex()) {
+					return null;
+				}
+				shadowing.add(patternIndex);
+			}
+		}
+		return shadowing.isEmpty() ? null : shadowing;
+	}
+
+	/**
+	 * Adds every word matched by the given parts to the list
+	 * 
+	 * @return false if the parts contain a repeated part or match too many
+	 *         words
+	 */
+	private boolean expandRule(PatternPart[] parts, List<String> words) {
+		List<String> expanded = new ArrayList<String>();
+		expanded.add("");
+		for (int j = 0; j < parts.length; j++) {
+			String string = parts[j].getPartString();
+			if (parts[j].getType() == ParsingFunctions.AND) {
+				for (int k = 0; k < expanded.size(); k++) {
+					expanded.set(k, expanded.get(k) + string);
+				}
+			} else if (parts[j].getType() == ParsingFunctions.OR) {
+				if (expanded.size() * string.length() > MAX_RULE_WORDS)
+					return false;
+				List<String> next = new ArrayList<String>();
+				for (String prefix : expanded) {
+					for (int k = 0; k < string.length(); k++) {
+						next.add(prefix + string.charAt(k));
+					}
+				}
+				expanded = next;
+			} else {
+				return false;
+			}
+		}
+		if (words.size() + expanded.size() > MAX_RULE_WORDS)
+			return false;
+		words.addAll(expanded);
+		return true;
+	}
+
+	/**
+	 * Tells if the part is a character set such as [abc], as opposed to a
+	 * sequence of characters such as (abc)
+	 */
+	private static boolean isSetPart(int type) {
+		return type == ParsingFunctions.OR || type == ParsingFunctions.OR_PLUS
+				|| type == ParsingFunctions.OR_STAR;
+	}
+
+	/**
+	 * Adds one normalised alternative of a rule to the matching automaton.
+	 * Subclasses providing a different matching engine override this to build
+	 * their own structure from the same pattern parts.
+	 * 
+	 * @param rhs
+	 *            the action of the rule the alternative belongs to
+	 * @param parts
+	 *            the parts of the alternative, in left to right order, with
+	 *            their characters already replaced by character classes
+	 */
+	protected void compileRule(RHS rhs, PatternPart[] parts) {
+		Set<Set<FSMState>> lss = new HashSet<Set<FSMState>>();
+		Set<FSMState> newSet = new HashSet<FSMState>();
+		newSet.add(initialState);
+		lss.add(newSet);
+		for (int j = 0; j < parts.length; j++) {
+			lss = ParsingFunctions.createFSMs(parts[j].getPartString(), parts[j].getType(), lss, this);
+			if (profileRules) {
+				int size = 0;
+				for (Set<FSMState> set : lss) {
+					size += set.size();
+				}
+				frontier = Math.max(frontier, size);
+			}
+		}
+		Iterator<Set<FSMState>> iter = lss.iterator();
+		while (iter.hasNext()) {
+			Set<FSMState> set = iter.next();
+			Iterator<FSMState> subIter = set.iterator();
+			while (subIter.hasNext()) {
+				FSMState st = subIter.next();
+				st.addRHS(rhs);
+			}
+		}
+	}
+
 	@SuppressWarnings("unused")
   private Set<FSMState> intersect(Set<FSMState> a, Set<FSMState> b) {
 		Set<FSMState> result = new HashSet<FSMState>();
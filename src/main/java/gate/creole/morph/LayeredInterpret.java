@@ -0,0 +1,101 @@
+package gate.creole.morph;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Title: LayeredInterpret.java
+ * </p>
+ * <p>
+ * Description: Runs a stack of separately compiled rule sets. The layers are
+ * tried in order and the first one with a rule that applies to the word gives
+ * the root and the affix, so small overlay rule files can take priority over a
+ * large base model without the base having to be recompiled. If no layer has a
+ * matching rule the word is returned unchanged.
+ * </p>
+ */
+public class LayeredInterpret extends Interpret {
+
+	/** The layers, highest priority first */
+	protected Interpret[] layers;
+
+	/** Only for use by {@link #copy()} */
+	public LayeredInterpret() {
+		layers = new Interpret[0];
+	}
+
+	/**
+	 * @param layers
+	 *            compiled rule sets, highest priority first; they must not be
+	 *            used by anything else
+	 */
+	public LayeredInterpret(Interpret... layers) {
+		this.layers = layers;
+	}
+
+	@Override
+	public void init(Interpret existingInterpret) {
+		super.init(existingInterpret);
+		if (existingInterpret instanceof LayeredInterpret) {
+			Interpret[] existingLayers = ((LayeredInterpret) existingInterpret).layers;
+			layers = new Interpret[existingLayers.length];
+			for (int i = 0; i < layers.length; i++) {
+				layers[i] = existingLayers[i].copy();
+			}
+		}
+	}
+
+	/**
+	 * Returns the layers, highest priority first
+	 */
+	public Interpret[] getLayers() {
+		return layers;
+	}
+
+	@Override
+	public String runMorpher(String word, String category) {
+		affix = null;
+		patternIndex = -1;
+		for (Interpret layer : layers) {
+			String root = layer.runMorpher(word, category);
+			if (layer.getPatternIndex() >= 0) {
+				affix = layer.getAffix();
+				patternIndex = layer.getPatternIndex();
+				return root;
+			}
+		}
+		return word;
+	}
+
+	/**
+	 * Returns the analyses of every layer, highest priority layer first. Rule
+	 * indexes are those of the rule file of each layer.
+	 */
+	@Override
+	public List<MorphAnalysis> runMorpherAll(String word) {
+		List<MorphAnalysis> analyses = new ArrayList<MorphAnalysis>();
+		for (Interpret layer : layers) {
+			analyses.addAll(layer.runMorpherAll(word));
+		}
+		return analyses;
+	}
+
+	@Override
+	public List<String> getLiteralRoots() {
+		List<String> roots = new ArrayList<String>();
+		for (Interpret layer : layers) {
+			roots.addAll(layer.getLiteralRoots());
+		}
+		return roots;
+	}
+
+	@Override
+	public boolean isAnalysable(String word) {
+		for (Interpret layer : layers) {
+			if (layer.isAnalysable(word))
+				return true;
+		}
+		return false;
+	}
+}
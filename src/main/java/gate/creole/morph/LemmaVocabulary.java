@@ -0,0 +1,117 @@
+package gate.creole.morph;
+
+import gate.util.BomStrippingInputStreamReader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Title: LemmaVocabulary.java
+ * </p>
+ * <p>
+ * Description: Gives every lemma a small integer id. Ids are handed out in the
+ * order lemmas are first seen and never change, so a vocabulary seeded with
+ * the literal roots of a rule file, or loaded from a file written by
+ * {@link #save(File)}, gives the same ids from one run to the next. New lemmas
+ * can be added concurrently; looking up a known lemma does not lock.
+ * </p>
+ */
+public class LemmaVocabulary {
+
+	/** ids by lemma */
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/** lemmas by id */
+	private final List<String> lemmas = new ArrayList<String>();
+
+	/**
+	 * Returns the id of the lemma, adding the lemma if it is new
+	 */
+	public Integer getId(String lemma) {
+		Integer id = ids.get(lemma);
+		if (id != null)
+			return id;
+		synchronized (lemmas) {
+			id = ids.get(lemma);
+			if (id == null) {
+				id = Integer.valueOf(lemmas.size());
+				lemmas.add(lemma);
+				ids.put(lemma, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Returns the lemma with the given id, or null if there is none
+	 */
+	public String getLemma(int id) {
+		synchronized (lemmas) {
+			return id >= 0 && id < lemmas.size() ? lemmas.get(id) : null;
+		}
+	}
+
+	/**
+	 * Returns the number of lemmas
+	 */
+	public int size() {
+		synchronized (lemmas) {
+			return lemmas.size();
+		}
+	}
+
+	/**
+	 * Adds the lemmas not in the vocabulary yet, in the given order
+	 */
+	public void addAll(List<String> newLemmas) {
+		for (String lemma : newLemmas) {
+			getId(lemma);
+		}
+	}
+
+	/**
+	 * Adds the lemmas listed one per line in the given file, the first line
+	 * getting the lowest id
+	 */
+	public void load(URL file) throws IOException {
+		BufferedReader in = new BomStrippingInputStreamReader(file.openStream(),
+				"UTF-8");
+		try {
+			String lemma;
+			while ((lemma = in.readLine()) != null) {
+				getId(lemma);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the lemmas one per line in order of id, so that line n (counted
+	 * from 0) holds the lemma with id n
+	 */
+	public void save(File file) throws IOException {
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+		try {
+			synchronized (lemmas) {
+				for (String lemma : lemmas) {
+					out.write(lemma);
+					out.newLine();
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -1,10 +1,19 @@
 package gate.creole.morph;
 
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +53,7 @@ import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
+import gate.util.Files;
 import gate.util.GateRuntimeException;
 
 /**
@@ -65,6 +75,25 @@ public class Morph
   /** Instance of BaseWord class - English Morpher */
   protected Interpret interpret;
 
+  /** Rule files consulted, in order, before the rules file */
+  protected List<URL> overlayRulesFiles;
+
+  /** Boolean value that tells if the compiled rules file is shared in the JVM */
+  protected Boolean shareBaseModel;
+
+  /**
+   * The shared compiled rules file, kept here so that it stays in
+   * {@link #sharedModels} while this PR uses it
+   */
+  protected Interpret baseModel;
+
+  /**
+   * Compiled rules files shared by all the Morph PRs of the JVM, by engine,
+   * options and rules file URL
+   */
+  private static final Map<String, WeakReference<Interpret>> sharedModels =
+      new HashMap<String, WeakReference<Interpret>>();
+
   /** Feature Name that should be displayed for the root word */
   protected String rootFeatureName;
 
@@ -74,17 +103,92 @@ public class Morph
   /** The name of the annotation set used for input */
   protected String annotationSetName;
 
+  /** Type of the annotations the analysed tokens must lie within */
+  protected String spanAnnotationType;
+
+  /** The name of the annotation set holding the span annotations */
+  protected String spanAnnotationSetName;
+
   /** Boolean value that tells if parser should behave in caseSensitive mode */
   protected Boolean caseSensitive;
 
   protected Boolean considerPOSTag;
+
+  /** Boolean value that tells if rules should be matched from the end of the word */
+  protected Boolean reverseMatching;
   
+  /** Boolean value that tells if rules that can never fire should be reported */
+  protected Boolean analyseRules;
+
+  /** Boolean value that tells if rules that can never fire should be dropped */
+  protected Boolean pruneShadowedRules;
+
+  /** File the rule compilation report is written to */
+  protected URL ruleProfileFile;
+
+  /** Number of rule files written to the profile file by this init */
+  private int profiledRuleFiles;
+
+  /** Tokens of these kinds are not analysed, their root is their string */
+  protected List<String> skipTokenKinds;
+
+  /** Tokens with these orthographies are not analysed */
+  protected List<String> skipTokenOrths;
+
+  /** Boolean value that tells if tokens no rule can match should be skipped */
+  protected Boolean skipUnanalysableTokens;
+
+  /** Number of tokens skipped because of their kind */
+  protected long tokensSkippedByKind = 0;
+
+  /** Number of tokens skipped because of their orthography */
+  protected long tokensSkippedByOrth = 0;
+
+  /** Number of tokens skipped because they contain characters no rule uses */
+  protected long tokensSkippedByCharacters = 0;
+
+  /** Number of tokens passed to the morpher */
+  protected long tokensAnalysed = 0;
+
+  /** The largest number of analyses kept in the cache, 0 disables it */
+  protected Integer cacheSize;
+
+  /** Word list used to fill the cache in the background at init time */
+  protected ResourceReference cacheWarmUpFile;
+
+  /** File the cached words are written to when this PR is deleted */
+  protected URL cacheSnapshotFile;
+
+  /** Cache of analyses, shared with all duplicates of this PR */
+  protected MorphCache cache;
+
+  /** Feature Name that should be displayed for the id of the root word */
+  protected String rootIdFeatureName;
+
+  /** File the lemma vocabulary is loaded from and saved to */
+  protected URL lemmaVocabularyFile;
+
+  /** Ids of the root words, shared with all duplicates of this PR */
+  protected LemmaVocabulary vocabulary;
+
   /**
    * If this Morph PR is a duplicate of an existing PR, this property
    * will hold a reference to the original PR's Interpret instance.
    */
   protected Interpret existingInterpret;
 
+  /**
+   * If this Morph PR is a duplicate of an existing PR, this property
+   * will hold a reference to the original PR's cache, if any.
+   */
+  protected MorphCache existingCache;
+
+  /**
+   * If this Morph PR is a duplicate of an existing PR, this property
+   * will hold a reference to the original PR's lemma vocabulary.
+   */
+  protected LemmaVocabulary existingVocabulary;
+
   @RunTime
   @Optional
   @CreoleParameter(
@@ -113,9 +217,9 @@ public class Morph
    */
   @Override
   public Resource init() throws ResourceInstantiationException {
-    interpret = new Interpret();
+    profiledRuleFiles = 0;
     if(existingInterpret != null) {
-      interpret.init(existingInterpret);
+      interpret = existingInterpret.copy();
     }
     else {
       if (rulesFile == null) {
@@ -124,19 +228,184 @@ public class Morph
       }
   
       fireStatusChanged("Reading Rule File...");
-      // compile the rules
+      Interpret base;
       try {
-        interpret.init(rulesFile.toURL());
+        if(shareBaseModel != null && shareBaseModel.booleanValue()) {
+          baseModel = getSharedModel(rulesFile.toURL());
+          base = baseModel.copy();
+        } else {
+          base = compileRules(rulesFile.toURL(), null);
+        }
       } catch(IOException e) {
         throw new ResourceInstantiationException(e);
       }
-      
+
+      if(overlayRulesFiles != null && !overlayRulesFiles.isEmpty()) {
+        Interpret[] layers = new Interpret[overlayRulesFiles.size() + 1];
+        for(int i = 0; i < overlayRulesFiles.size(); i++) {
+          layers[i] = compileRules(overlayRulesFiles.get(i), base.getVariables());
+        }
+        layers[layers.length - 1] = base;
+        interpret = new LayeredInterpret(layers);
+      } else {
+        interpret = base;
+      }
+
       fireStatusChanged("Morpher created!");
       fireProcessFinished();
     }
+
+    if(existingCache != null) {
+      cache = existingCache;
+    } else if(cacheSize != null && cacheSize.intValue() > 0) {
+      cache = new MorphCache(cacheSize.intValue());
+      if(cacheWarmUpFile != null) {
+        try {
+          cache.warmUp(cacheWarmUpFile.toURL(), interpret,
+              caseSensitive == null || !caseSensitive.booleanValue());
+        } catch(IOException e) {
+          throw new ResourceInstantiationException(e);
+        }
+      }
+    }
+
+    if(existingVocabulary != null) {
+      vocabulary = existingVocabulary;
+    } else if(lemmaVocabularyFile != null || isRootIdRequested()) {
+      vocabulary = createVocabulary();
+    } else {
+      // seeded by execute if root ids are asked for later, but created now
+      // so that duplicates share it
+      vocabulary = new LemmaVocabulary();
+    }
     return this;
   }
 
+  /**
+   * Tells if the ids of the root words should be added to the tokens
+   */
+  protected boolean isRootIdRequested() {
+    return rootIdFeatureName != null && rootIdFeatureName.length() > 0;
+  }
+
+  /**
+   * Creates the lemma vocabulary, loaded from the vocabulary file if it
+   * exists, and seeded with the roots the rules give literally.
+   */
+  protected LemmaVocabulary createVocabulary()
+      throws ResourceInstantiationException {
+    LemmaVocabulary created = new LemmaVocabulary();
+    if(lemmaVocabularyFile != null
+        && (!"file".equals(lemmaVocabularyFile.getProtocol())
+            || Files.fileFromURL(lemmaVocabularyFile).exists())) {
+      try {
+        created.load(lemmaVocabularyFile);
+      } catch(IOException e) {
+        throw new ResourceInstantiationException(e);
+      }
+    }
+    created.addAll(interpret.getLiteralRoots());
+    return created;
+  }
+
+  /**
+   * Creates the matching engine selected by the parameters and compiles the
+   * given rules with it, reporting any rules that can never fire.
+   * @param rules the rule file
+   * @param inheritedVariables variables the rules may use without defining
+   * them, or null
+   */
+  protected Interpret compileRules(URL rules, Storage inheritedVariables)
+      throws ResourceInstantiationException {
+    Interpret compiled;
+    if(reverseMatching != null && reverseMatching.booleanValue()) {
+      compiled = new ReverseInterpret();
+    } else {
+      compiled = new Interpret();
+    }
+    compiled.setInheritedVariables(inheritedVariables);
+    compiled.setAnalyseRules(analyseRules != null && analyseRules.booleanValue());
+    compiled.setPruneShadowedRules(pruneShadowedRules != null && pruneShadowedRules.booleanValue());
+    compiled.setProfileRules(ruleProfileFile != null);
+    compiled.init(rules);
+    if(ruleProfileFile != null) {
+      writeRuleProfile(rules, compiled.getRuleProfiles());
+    }
+
+    for(String shadowedRule : compiled.getShadowedRules()) {
+      logger.warn("Rule can never fire, " + rules + " " + shadowedRule);
+    }
+    return compiled;
+  }
+
+  /**
+   * Appends the compilation report of a rule file to the profile file,
+   * which is started afresh by the first rule file compiled at init.
+   */
+  protected void writeRuleProfile(URL rules, List<RuleProfile> profiles)
+      throws ResourceInstantiationException {
+    boolean append = profiledRuleFiles++ > 0;
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(
+        Files.fileFromURL(ruleProfileFile), append), "UTF-8")) {
+      out.write("# " + rules + "\n");
+      RuleProfile.writeReport(profiles, out);
+    } catch(IOException | IllegalArgumentException e) {
+      throw new ResourceInstantiationException(
+          "Could not write the rule profile to " + ruleProfileFile, e);
+    }
+  }
+
+  /**
+   * Returns the compiled rules file shared in the JVM, compiling it if no
+   * other PR with the same options is using it.
+   */
+  protected Interpret getSharedModel(URL rules)
+      throws ResourceInstantiationException {
+    String key = (reverseMatching != null && reverseMatching.booleanValue())
+        + " " + (pruneShadowedRules != null && pruneShadowedRules.booleanValue())
+        + " " + rules.toExternalForm();
+    synchronized(sharedModels) {
+      WeakReference<Interpret> ref = sharedModels.get(key);
+      Interpret model = ref == null ? null : ref.get();
+      if(model == null) {
+        model = compileRules(rules, null);
+        sharedModels.put(key, new WeakReference<Interpret>(model));
+      }
+      return model;
+    }
+  }
+
+  /**
+   * Stops any cache warm up and, if this PR owns the cache, writes the
+   * cached words to the snapshot file.
+   */
+  @Override
+  public void cleanup() {
+    if(cache != null && existingCache == null) {
+      cache.stopWarmUp();
+      if(cacheSnapshotFile != null) {
+        try {
+          File snapshot = Files.fileFromURL(cacheSnapshotFile);
+          cache.save(snapshot);
+        } catch(IOException | IllegalArgumentException e) {
+          logger.warn("Could not save the morph cache to " + cacheSnapshotFile, e);
+        }
+      }
+    }
+    if(vocabulary != null && existingVocabulary == null
+        && lemmaVocabularyFile != null) {
+      try {
+        vocabulary.save(Files.fileFromURL(lemmaVocabularyFile));
+      } catch(IOException | IllegalArgumentException e) {
+        logger.warn("Could not save the lemma vocabulary to " + lemmaVocabularyFile, e);
+      }
+    }
+    cache = null;
+    vocabulary = null;
+    baseModel = null;
+    super.cleanup();
+  }
+
   /**
    * Method is executed after the init() method has finished its execution.
    * <BR>Method does the following operations:
@@ -183,11 +452,34 @@ public class Morph
       //return;
     }
 
-    // create iterator to get access to each and every individual token
-    Iterator<Annotation> tokensIter = tokens.iterator();
+    Iterator<Annotation> tokensIter;
+    int tokenSize;
+    if(spanAnnotationType != null && spanAnnotationType.length() > 0) {
+      AnnotationSet spanAs = (spanAnnotationSetName == null ||
+          spanAnnotationSetName.length() == 0) ?
+          inputAs :
+          document.getAnnotations(spanAnnotationSetName);
+      List<Annotation> tokensInSpans = getTokensInSpans(tokens,
+          spanAs.get(spanAnnotationType));
+      tokensIter = tokensInSpans.iterator();
+      tokenSize = tokensInSpans.size();
+    } else {
+      // create iterator to get access to each and every individual token
+      tokensIter = tokens.iterator();
+      tokenSize = tokens.size();
+    }
+
+    boolean addRootIds = isRootIdRequested();
+    if(addRootIds) {
+      synchronized(vocabulary) {
+        // left empty by init when root ids were not asked for then
+        if(vocabulary.size() == 0) {
+          vocabulary.addAll(interpret.getLiteralRoots());
+        }
+      }
+    }
 
     // variables used to keep track on progress
-    int tokenSize = tokens.size();
     int tokensProcessed = 0;
     int lastReport = 0;
 
@@ -223,8 +515,26 @@ public class Morph
         tokenValue = tokenValue.toLowerCase();
       }
 
-      String baseWord = interpret.runMorpher(tokenValue, posCategory);
-      String affixWord = interpret.getAffix();
+      String baseWord;
+      String affixWord;
+      if(skipToken(currentToken.getFeatures(), tokenValue)) {
+        // no rule can apply, so the root is the surface form
+        baseWord = tokenValue;
+        affixWord = null;
+      } else {
+        tokensAnalysed++;
+        String[] cached = cache == null ? null : cache.get(tokenValue, posCategory);
+        if(cached != null) {
+          baseWord = cached[0];
+          affixWord = cached[1];
+        } else {
+          baseWord = interpret.runMorpher(tokenValue, posCategory);
+          affixWord = interpret.getAffix();
+          if(cache != null) {
+            cache.put(tokenValue, posCategory, baseWord, affixWord);
+          }
+        }
+      }
 
       // no need to add affix feature if it is null
       if (affixWord != null) {
@@ -232,6 +542,9 @@ public class Morph
       }
       // add the root word as a feature
       currentToken.getFeatures().put(rootFeatureName, baseWord);
+      if(addRootIds) {
+        currentToken.getFeatures().put(rootIdFeatureName, vocabulary.getId(baseWord));
+      }
 
       // measure the progress and update every after 100 tokens
       tokensProcessed++;
@@ -244,6 +557,103 @@ public class Morph
     fireProcessFinished();
   }
 
+  /**
+   * Finds the tokens which lie within at least one of the spans, with a
+   * single pass over both sets sorted by offset.
+   * @param tokens the tokens to filter
+   * @param spans the annotations the tokens must lie within
+   * @return the tokens found, in document order
+   */
+  protected List<Annotation> getTokensInSpans(AnnotationSet tokens,
+      AnnotationSet spans) {
+    List<Annotation> result = new ArrayList<Annotation>();
+    if(spans == null || spans.isEmpty()) return result;
+    List<Annotation> sortedTokens = Utils.inDocumentOrder(tokens);
+    List<Annotation> sortedSpans = Utils.inDocumentOrder(spans);
+
+    // the furthest end of the spans starting at or before the current token
+    long coveredTo = -1;
+    int nextSpan = 0;
+    for(Annotation token : sortedTokens) {
+      long start = token.getStartNode().getOffset();
+      while(nextSpan < sortedSpans.size()
+          && sortedSpans.get(nextSpan).getStartNode().getOffset() <= start) {
+        long end = sortedSpans.get(nextSpan).getEndNode().getOffset();
+        if(end > coveredTo) coveredTo = end;
+        nextSpan++;
+      }
+      if(token.getEndNode().getOffset() <= coveredTo) {
+        result.add(token);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Decides, without running the morpher, if a token should be left as it
+   * is, and counts the reason for skipping it.
+   * @param features the features of the token
+   * @param tokenValue the string of the token, as it would be analysed
+   * @return true if the root of the token is its surface form
+   */
+  protected boolean skipToken(FeatureMap features, String tokenValue) {
+    if(skipTokenKinds != null && !skipTokenKinds.isEmpty()
+        && skipTokenKinds.contains(features.get(TOKEN_KIND_FEATURE_NAME))) {
+      tokensSkippedByKind++;
+      return true;
+    }
+    if(skipTokenOrths != null && !skipTokenOrths.isEmpty()
+        && skipTokenOrths.contains(features.get(TOKEN_ORTH_FEATURE_NAME))) {
+      tokensSkippedByOrth++;
+      return true;
+    }
+    if(skipUnanalysableTokens != null && skipUnanalysableTokens.booleanValue()
+        && !interpret.isAnalysable(tokenValue)) {
+      tokensSkippedByCharacters++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of tokens skipped because of their kind
+   */
+  public long getTokensSkippedByKind() {
+    return tokensSkippedByKind;
+  }
+
+  /**
+   * Returns the number of tokens skipped because of their orthography
+   */
+  public long getTokensSkippedByOrth() {
+    return tokensSkippedByOrth;
+  }
+
+  /**
+   * Returns the number of tokens skipped because they contain characters
+   * that are not used by any rule
+   */
+  public long getTokensSkippedByCharacters() {
+    return tokensSkippedByCharacters;
+  }
+
+  /**
+   * Returns the number of tokens that have been passed to the morpher
+   */
+  public long getTokensAnalysed() {
+    return tokensAnalysed;
+  }
+
+  /**
+   * Sets all the skip counters back to zero
+   */
+  public void resetSkipCounters() {
+    tokensSkippedByKind = 0;
+    tokensSkippedByOrth = 0;
+    tokensSkippedByCharacters = 0;
+    tokensAnalysed = 0;
+  }
+
   /**
    * This method should only be called after init()
    * @param word
@@ -263,6 +673,16 @@ public class Morph
     return interpret.getAffix();
   }
 
+  /**
+   * This method should only be called after init()
+   * @param word
+   * @return every analysis of the word, for any category, in the order of
+   * the rules that give them
+   */
+  public List<MorphAnalysis> findAllAnalyses(String word) {
+    return interpret.runMorpherAll(word);
+  }
+
   /**
    * Sets the rule file to be processed
    * @param rulesFile - rule File name to be processed
@@ -306,6 +726,48 @@ public class Morph
     this.rootFeatureName = rootFeatureName;
   }
 
+  public String getRootIdFeatureName() {
+    return rootIdFeatureName;
+  }
+
+  /**
+   * Sets the feature name for the integer id of the root word in the lemma
+   * vocabulary. No id is added if this is empty.
+   * @param rootIdFeatureName
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Name of the feature holding the id of the root word, no id is added if empty")
+  public void setRootIdFeatureName(String rootIdFeatureName) {
+    this.rootIdFeatureName = rootIdFeatureName;
+  }
+
+  public URL getLemmaVocabularyFile() {
+    return lemmaVocabularyFile;
+  }
+
+  /**
+   * Sets a file of lemmas, one per line with line n holding the lemma with
+   * id n, which is loaded at init if it exists and written back, with any
+   * new lemmas, when this PR is deleted. Ids then stay the same from one
+   * run to the next.
+   */
+  @Optional
+  @CreoleParameter(comment="File the lemma vocabulary is loaded from and saved to")
+  public void setLemmaVocabularyFile(URL lemmaVocabularyFile) {
+    this.lemmaVocabularyFile = lemmaVocabularyFile;
+  }
+
+  /**
+   * Returns the vocabulary giving the ids of the root words. It is only
+   * filled at init when a root id feature name or a vocabulary file is set,
+   * and is otherwise left empty until root ids are first asked for.
+   * Duplicates share it either way.
+   */
+  public LemmaVocabulary getVocabulary() {
+    return vocabulary;
+  }
+
   /**
    * Returns the feature name that has been currently set to display the affix
    * word
@@ -343,6 +805,38 @@ public class Morph
     this.annotationSetName = annotationSetName;
   }
 
+  public String getSpanAnnotationType() {
+    return spanAnnotationType;
+  }
+
+  /**
+   * Sets the type of the annotations, such as Sentence, that tokens must lie
+   * within to be analysed. All tokens are analysed if this is empty.
+   * @param spanAnnotationType
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Only analyse tokens within annotations of this type, all tokens if empty")
+  public void setSpanAnnotationType(String spanAnnotationType) {
+    this.spanAnnotationType = spanAnnotationType;
+  }
+
+  public String getSpanAnnotationSetName() {
+    return spanAnnotationSetName;
+  }
+
+  /**
+   * Sets the name of the annotation set holding the span annotations. The
+   * input annotation set is used if this is empty.
+   * @param spanAnnotationSetName
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="The annotation set holding the span annotations, the input set if empty")
+  public void setSpanAnnotationSetName(String spanAnnotationSetName) {
+    this.spanAnnotationSetName = spanAnnotationSetName;
+  }
+
   /**
    * A method which returns if the parser is in caseSenstive mode
    * @return a {@link Boolean} value.
@@ -360,6 +854,56 @@ public class Morph
     this.caseSensitive = value;
   }
 
+  public List<URL> getOverlayRulesFiles() {
+    return overlayRulesFiles;
+  }
+
+  /**
+   * Sets rule files which are compiled separately and consulted, in the
+   * order given, before the rules file. They can use the variables defined
+   * in the rules file. A word is analysed by the first file with a rule for
+   * it, so domain rules can be added without copying the rules file.
+   */
+  @Optional
+  @CreoleParameter(comment="Rule files consulted, in order, before the rules file")
+  public void setOverlayRulesFiles(List<URL> overlayRulesFiles) {
+    this.overlayRulesFiles = overlayRulesFiles;
+  }
+
+  public Boolean getShareBaseModel() {
+    return shareBaseModel;
+  }
+
+  /**
+   * If true, the compiled rules file is shared by all the Morph PRs of the
+   * JVM with the same rules file and matching options, and only compiled
+   * by the first of them. Changes to the file are then only picked up once
+   * no PR uses it any more.
+   */
+  @Optional
+  @CreoleParameter(comment="Share the compiled rules file between all the morphers of the JVM", defaultValue="false")
+  public void setShareBaseModel(Boolean shareBaseModel) {
+    this.shareBaseModel = shareBaseModel;
+  }
+
+  /**
+   * Returns true if the suffix-first matching engine is used
+   */
+  public Boolean getReverseMatching() {
+    return this.reverseMatching;
+  }
+
+  /**
+   * Selects the suffix-first matching engine ({@link ReverseInterpret}),
+   * which reads words from their last character and stops as soon as no
+   * longer rule suffix can apply, instead of always reading the whole word.
+   */
+  @Optional
+  @CreoleParameter(comment="If rules should be matched from the end of the word backwards", defaultValue="false")
+  public void setReverseMatching(Boolean value) {
+    this.reverseMatching = value;
+  }
+
   public Boolean getConsiderPOSTag() {
     return this.considerPOSTag;
   }
@@ -370,6 +914,162 @@ public class Morph
     this.considerPOSTag = value;
   }
   
+  public Boolean getAnalyseRules() {
+    return analyseRules;
+  }
+
+  /**
+   * If true, rules that can never fire, because they duplicate an earlier
+   * rule or because earlier rules always win, are reported with their line
+   * numbers when the rules are compiled
+   */
+  @Optional
+  @CreoleParameter(comment="Report rules that can never fire", defaultValue="false")
+  public void setAnalyseRules(Boolean analyseRules) {
+    this.analyseRules = analyseRules;
+  }
+
+  public URL getRuleProfileFile() {
+    return ruleProfileFile;
+  }
+
+  /**
+   * Sets a file to which, when the rules are compiled, a report is written
+   * giving for each rule the time spent compiling it and the number of
+   * states and transitions it added to the automaton, slowest rule first.
+   * A shared base model is only profiled when it is compiled.
+   */
+  @Optional
+  @CreoleParameter(comment="File a report of the time and states taken by each rule is written to at init")
+  public void setRuleProfileFile(URL ruleProfileFile) {
+    this.ruleProfileFile = ruleProfileFile;
+  }
+
+  public Boolean getPruneShadowedRules() {
+    return pruneShadowedRules;
+  }
+
+  /**
+   * If true, rules that can never fire are reported and left out of the
+   * compiled model
+   */
+  @Optional
+  @CreoleParameter(comment="Leave rules that can never fire out of the compiled model", defaultValue="false")
+  public void setPruneShadowedRules(Boolean pruneShadowedRules) {
+    this.pruneShadowedRules = pruneShadowedRules;
+  }
+
+  public List<String> getSkipTokenKinds() {
+    return skipTokenKinds;
+  }
+
+  /**
+   * Sets the token kinds that are never analysed. The root of such a token
+   * is its string. Only kinds that no rule can change should be listed;
+   * numbers are not one of them, as "1990s" has the root "1990". None by
+   * default.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Token kinds that should not be analysed")
+  public void setSkipTokenKinds(List<String> skipTokenKinds) {
+    this.skipTokenKinds = skipTokenKinds;
+  }
+
+  public List<String> getSkipTokenOrths() {
+    return skipTokenOrths;
+  }
+
+  /**
+   * Sets the token orthographies (e.g. allCaps) that are never analysed
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Token orthographies that should not be analysed")
+  public void setSkipTokenOrths(List<String> skipTokenOrths) {
+    this.skipTokenOrths = skipTokenOrths;
+  }
+
+  public Boolean getSkipUnanalysableTokens() {
+    return skipUnanalysableTokens;
+  }
+
+  /**
+   * If true, tokens containing a character that is not used by any rule are
+   * not passed to the morpher, as no rule could change them anyway. Off by
+   * default.
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(comment="Skip tokens containing characters that no rule uses", defaultValue="false")
+  public void setSkipUnanalysableTokens(Boolean skipUnanalysableTokens) {
+    this.skipUnanalysableTokens = skipUnanalysableTokens;
+  }
+
+  public Integer getCacheSize() {
+    return cacheSize;
+  }
+
+  /**
+   * Sets the largest number of analyses that are cached. The cache is shared
+   * by all duplicates of this PR; 0 disables it.
+   */
+  @Optional
+  @CreoleParameter(comment="The largest number of analyses to cache, 0 disables the cache", defaultValue="0")
+  public void setCacheSize(Integer cacheSize) {
+    this.cacheSize = cacheSize;
+  }
+
+  public ResourceReference getCacheWarmUpFile() {
+    return cacheWarmUpFile;
+  }
+
+  /**
+   * Sets a list of words, one per line and optionally followed by a tab and
+   * a POS category, which are analysed into the cache in the background
+   * after init. Most frequent words should come first.
+   */
+  @Optional
+  @CreoleParameter(comment="Word list (word[TAB category] per line) used to fill the cache at init time")
+  public void setCacheWarmUpFile(ResourceReference cacheWarmUpFile) {
+    this.cacheWarmUpFile = cacheWarmUpFile;
+  }
+
+  public URL getCacheSnapshotFile() {
+    return cacheSnapshotFile;
+  }
+
+  /**
+   * Sets a file the cached words are written to when this PR is deleted, in
+   * the format used by the warm up file
+   */
+  @Optional
+  @CreoleParameter(comment="File the cached words are saved to when the PR is deleted")
+  public void setCacheSnapshotFile(URL cacheSnapshotFile) {
+    this.cacheSnapshotFile = cacheSnapshotFile;
+  }
+
+  /**
+   * Returns the cache of analyses, or null if caching is disabled
+   */
+  public MorphCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Only for use by the duplication mechanism.
+   */
+  public void setExistingVocabulary(LemmaVocabulary existingVocabulary) {
+    this.existingVocabulary = existingVocabulary;
+  }
+
+  /**
+   * Only for use by the duplication mechanism.
+   */
+  public void setExistingCache(MorphCache existingCache) {
+    this.existingCache = existingCache;
+  }
+
   /**
    * Only for use by the duplication mechanism.
    */
@@ -379,7 +1079,8 @@ public class Morph
 
   /**
    * Duplicate this morpher, sharing the compiled regular expression
-   * patterns and finite state machine with the duplicate.
+   * patterns, finite state machine, cache and lemma vocabulary with the
+   * duplicate.
    */
   @Override
   public Resource duplicate(DuplicationContext ctx)
@@ -388,6 +1089,10 @@ public class Morph
     String resName = this.getName();
     FeatureMap initParams = getInitParameterValues();
     initParams.put("existingInterpret", interpret);
+    if(cache != null) {
+      initParams.put("existingCache", cache);
+    }
+    initParams.put("existingVocabulary", vocabulary);
     Resource res = Factory.createResource(className, initParams, this.getFeatures(), resName);
     res.setParameterValues(getRuntimeParameterValues());
     return res;
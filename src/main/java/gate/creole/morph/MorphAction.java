@@ -0,0 +1,196 @@
+package gate.creole.morph;
+
+/**
+ * <p>
+ * Title: MorphAction.java
+ * </p>
+ * <p>
+ * Description: The right hand side of a rule, decoded when the rules are
+ * compiled. Each subclass does what the {@link MorphFunctions} method of the
+ * same name does, but with its parameters already parsed, so firing a rule
+ * only reads a few fields and builds the root. Actions are immutable and can
+ * be shared between threads.
+ * </p>
+ */
+public abstract class MorphAction {
+
+	/** The affix reported when a rule does not set one */
+	public static final String NO_AFFIX = " ";
+
+	/**
+	 * Returns the root of the word
+	 */
+	public abstract String getRoot(String word);
+
+	/**
+	 * Returns the affix of the word
+	 */
+	public abstract String getAffix(String word);
+
+	/**
+	 * Returns the root this action always gives, whatever the word, or null
+	 * if the root depends on the word
+	 */
+	public String getLiteralRoot() {
+		return null;
+	}
+
+	/**
+	 * Decodes a call to one of the {@link MorphFunctions} methods, as written
+	 * on the right hand side of a rule
+	 * 
+	 * @param function
+	 *            the call, e.g. stem(2,"","s")
+	 * @return the action, or null if the method is not known
+	 */
+	public static MorphAction compile(String function) {
+		short methodIndex = ParsingFunctions.getMethodIndex(function);
+		String[] parameters = ParsingFunctions.getParameterValues(function);
+		switch (methodIndex) {
+		case ParsingFunctions.IRREG_STEM:
+			return new IrregularStem(parameters[0], parameters[1]);
+		case ParsingFunctions.NULL_STEM:
+			return NullStem.INSTANCE;
+		case ParsingFunctions.SEMIREG_STEM:
+			return new SemiRegularStem(Integer.parseInt(parameters[0]),
+					parameters[1]);
+		case ParsingFunctions.STEM:
+			return new Stem(Integer.parseInt(parameters[0]), parameters[1],
+					parameters[2]);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the word with a fixed root
+	 */
+	public static final class IrregularStem extends MorphAction {
+		private final String root;
+		private final String affix;
+
+		public IrregularStem(String root, String affix) {
+			this.root = root;
+			this.affix = affix;
+		}
+
+		@Override
+		public String getRoot(String word) {
+			return root;
+		}
+
+		@Override
+		public String getLiteralRoot() {
+			return root;
+		}
+
+		@Override
+		public String getAffix(String word) {
+			return affix;
+		}
+	}
+
+	/**
+	 * Leaves the word as it is
+	 */
+	public static final class NullStem extends MorphAction {
+		static final NullStem INSTANCE = new NullStem();
+
+		@Override
+		public String getRoot(String word) {
+			return word;
+		}
+
+		@Override
+		public String getAffix(String word) {
+			return NO_AFFIX;
+		}
+	}
+
+	/**
+	 * Deletes a number of characters from the end of the word and appends a
+	 * string, setting a fixed affix
+	 */
+	public static final class Stem extends MorphAction {
+		private final int delete;
+		private final String append;
+		private final String affix;
+
+		public Stem(int delete, String append, String affix) {
+			this.delete = delete;
+			this.append = append;
+			this.affix = affix;
+		}
+
+		@Override
+		public String getRoot(String word) {
+			return word.substring(0, word.length() - delete).concat(append);
+		}
+
+		@Override
+		public String getAffix(String word) {
+			return affix;
+		}
+	}
+
+	/**
+	 * Removes an -s, -ed or -ing ending, found from the last character of the
+	 * word, deletes a number of further characters and appends a string. The
+	 * number of characters removed for each ending is worked out up front.
+	 */
+	public static final class SemiRegularStem extends MorphAction {
+		private final int delete;
+		private final int deleteS;
+		private final int deleteEd;
+		private final int deleteIng;
+		private final String append;
+
+		public SemiRegularStem(int delete, String append) {
+			this.delete = delete;
+			this.deleteS = delete + 2;
+			this.deleteEd = delete + 2;
+			this.deleteIng = delete + 3;
+			this.append = append;
+		}
+
+		@Override
+		public String getRoot(String word) {
+			int length = word.length();
+			int remove;
+			switch (word.charAt(length - 1)) {
+			case 's':
+			case 'S':
+				remove = deleteS;
+				break;
+			case 'd':
+			case 'D':
+				remove = deleteEd;
+				break;
+			case 'g':
+			case 'G':
+				remove = deleteIng;
+				break;
+			default:
+				remove = delete;
+			}
+			return word.substring(0, length - remove).concat(append);
+		}
+
+		@Override
+		public String getAffix(String word) {
+			switch (word.charAt(word.length() - 1)) {
+			case 's':
+			case 'S':
+				return "s";
+			case 'd':
+			case 'D':
+				return "ed";
+			case 'g':
+			case 'G':
+				return "ing";
+			default:
+				return NO_AFFIX;
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package gate.creole.morph;
+
+/**
+ * <p>
+ * Title: MorphAnalysis.java
+ * </p>
+ * <p>
+ * Description: One analysis of a word: the root and affix given by a rule, the
+ * category the rule applies to (verb, noun or *) and the index of the rule in
+ * its rule file.
+ * </p>
+ */
+public class MorphAnalysis {
+
+	private final String root;
+
+	private final String affix;
+
+	private final String category;
+
+	private final int ruleIndex;
+
+	public MorphAnalysis(String root, String affix, String category,
+			int ruleIndex) {
+		this.root = root;
+		this.affix = affix;
+		this.category = category;
+		this.ruleIndex = ruleIndex;
+	}
+
+	public String getRoot() {
+		return root;
+	}
+
+	public String getAffix() {
+		return affix;
+	}
+
+	public String getCategory() {
+		return category;
+	}
+
+	public int getRuleIndex() {
+		return ruleIndex;
+	}
+
+	@Override
+	public String toString() {
+		return root + "+" + affix + " <" + category + "> rule " + ruleIndex;
+	}
+}
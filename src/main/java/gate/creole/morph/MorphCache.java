@@ -0,0 +1,265 @@
+package gate.creole.morph;
+
+import gate.util.BomStrippingInputStreamReader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Title: MorphCache.java
+ * </p>
+ * <p>
+ * Description: A bounded, thread safe cache of morpher results, keyed by the
+ * word and the POS category it was analysed with. A single cache is shared
+ * by a Morph PR and all its duplicates. Once the cache is full, the least
+ * recently used result is dropped to make room for a new one.
+ * </p>
+ * <p>
+ * The cache can be warmed up in the background from a word list with one
+ * word per line, optionally followed by a tab and a POS category (words
+ * without a category are analysed with "*"). The list should be ordered by
+ * decreasing frequency, as only the first words fit in a bounded cache.
+ * {@link #save(File)} writes the words currently cached in the same format,
+ * the most recently used first, so a snapshot can be used to warm up the
+ * next instance.
+ * </p>
+ */
+public class MorphCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(MorphCache.class);
+
+	/** number of words each warm up task analyses */
+	private static final int WARM_UP_BATCH = 1000;
+
+	/** A word and the category it was analysed with */
+	private static class Key {
+		final String word;
+
+		final String category;
+
+		Key(String word, String category) {
+			this.word = word;
+			this.category = category;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * word.hashCode() + category.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return word.equals(other.word) && category.equals(other.category);
+		}
+	}
+
+	/** the largest number of results held */
+	private final int maxSize;
+
+	/** cached {root, affix} pairs, the least recently used first */
+	private final Map<Key, String[]> entries;
+
+	/** threads running the warm up, if any */
+	private ExecutorService warmUpExecutor;
+
+	public MorphCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<Key, String[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, String[]> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached {root, affix} pair for the word, or null if the word
+	 * has not been analysed with this category yet
+	 */
+	public synchronized String[] get(String word, String category) {
+		return entries.get(new Key(word, category));
+	}
+
+	/**
+	 * Stores the result of analysing the word, dropping the least recently
+	 * used result if the cache is full
+	 */
+	public synchronized void put(String word, String category, String root,
+			String affix) {
+		entries.put(new Key(word, category), new String[] { root, affix });
+	}
+
+	/**
+	 * Returns the number of cached results
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Starts analysing the words of the given list into the cache and returns
+	 * straight away. The list is read and the words analysed on a pool of
+	 * daemon threads, each using its own copy of the interpreter.
+	 * 
+	 * @param wordList
+	 *            the list of words to analyse
+	 * @param interpret
+	 *            the interpreter whose compiled rules should be used
+	 * @param lowerCase
+	 *            if the words should be converted to lower case first, as Morph
+	 *            does when it is not case sensitive
+	 */
+	public synchronized void warmUp(final URL wordList, final Interpret interpret,
+			final boolean lowerCase) {
+		stopWarmUp();
+		final ExecutorService executor = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Morph cache warm up");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		warmUpExecutor = executor;
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader in = new BomStrippingInputStreamReader(
+							wordList.openStream(), "UTF-8");
+					try {
+						List<String[]> batch = new ArrayList<String[]>();
+						int read = 0;
+						String line;
+						while (read < maxSize && (line = in.readLine()) != null) {
+							if (line.trim().length() == 0)
+								continue;
+							String[] entry = line.split("\t");
+							String word = lowerCase ? entry[0].toLowerCase() : entry[0];
+							String category = entry.length > 1 ? entry[1] : "*";
+							batch.add(new String[] { word, category });
+							read++;
+							if (batch.size() == WARM_UP_BATCH) {
+								executor.execute(analyse(batch, interpret.copy()));
+								batch = new ArrayList<String[]>();
+							}
+						}
+						if (!batch.isEmpty()) {
+							executor.execute(analyse(batch, interpret.copy()));
+						}
+					} finally {
+						in.close();
+					}
+					// the threads end once the batches queued are analysed
+					executor.shutdown();
+				} catch (RejectedExecutionException e) {
+					// the warm up was stopped while the list was being read
+				} catch (IOException e) {
+					// reading is also interrupted when the warm up is stopped
+					if (!executor.isShutdown()) {
+						logger.warn("Could not read the morph cache warm up list "
+								+ wordList, e);
+						executor.shutdown();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns a task analysing the given {word, category} pairs into the cache
+	 */
+	private Runnable analyse(final List<String[]> batch,
+			final Interpret interpret) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				for (String[] entry : batch) {
+					if (Thread.currentThread().isInterrupted())
+						return;
+					if (get(entry[0], entry[1]) != null)
+						continue;
+					String root = interpret.runMorpher(entry[0], entry[1]);
+					put(entry[0], entry[1], root, interpret.getAffix());
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits for the warm up to analyse all the words of its list
+	 * 
+	 * @return false if the warm up is still running after the timeout
+	 */
+	public boolean awaitWarmUp(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		ExecutorService executor;
+		synchronized (this) {
+			executor = warmUpExecutor;
+		}
+		return executor == null || executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Stops any warm up still running
+	 */
+	public synchronized void stopWarmUp() {
+		if (warmUpExecutor != null) {
+			warmUpExecutor.shutdownNow();
+			warmUpExecutor = null;
+		}
+	}
+
+	/**
+	 * Writes the words currently cached, with their categories, to the given
+	 * file, in the format read by {@link #warmUp(URL, Interpret, boolean)}.
+	 * The most recently used words come first, so that they are the ones
+	 * kept if the snapshot is read into a smaller cache.
+	 */
+	public void save(File file) throws IOException {
+		List<Key> keys;
+		synchronized (this) {
+			keys = new ArrayList<Key>(entries.keySet());
+		}
+		Collections.reverse(keys);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+		try {
+			for (Key key : keys) {
+				out.write(key.word);
+				out.write('\t');
+				out.write(key.category);
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -1,15 +1,15 @@
 package gate.creole.morph;
 
 public class RHS {
-	private short methodIndex;
-	private String[] parameters;
+	private MorphAction action;
 	private boolean verb = false;
 	private boolean noun = false;
+	private String category;
 	private short patternIndex = 0; 
 	
 	public RHS(String function, String category, short patternIndex) {
-		methodIndex = ParsingFunctions.getMethodIndex(function.trim());
-		parameters = ParsingFunctions.getParameterValues(function.trim());
+		this.category = category;
+		action = MorphAction.compile(function.trim());
 		if(category.equals("verb"))
 			verb = true;
 		else if(category.equals("noun"))
@@ -21,16 +21,20 @@ public class RHS {
 		this.patternIndex = patternIndex;
 	}
 
-	public short getMethodIndex() {
-		return methodIndex;
+	/**
+	 * Returns the decoded action of this rule, or null if its method is not
+	 * known
+	 */
+	public MorphAction getAction() {
+		return action;
 	}
 
-	public String[] getParameters() {
-		return parameters;
-	}
-
-	public void setParameters(String[] parameters) {
-		this.parameters = parameters;
+	/**
+	 * Returns the category of the rule, as written in the rule file (verb,
+	 * noun or *)
+	 */
+	public String getCategory() {
+		return category;
 	}
 
 	public boolean isNoun() {
@@ -0,0 +1,129 @@
+package gate.creole.morph;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Title: ReverseInterpret.java
+ * </p>
+ * <p>
+ * Description: An alternative matching engine for the morpher. Nearly all the
+ * rules are anchored on a suffix of the word, so instead of feeding the word
+ * left to right through the automaton, the fixed trailing part of every rule
+ * is compiled into a reversed automaton. A word is read from its last
+ * character backwards, and reading stops as soon as no longer suffix exists.
+ * The rules collected on the way are then checked, in rule order, against
+ * their compiled patterns, which takes care of any prefix conditions.
+ * </p>
+ */
+public class ReverseInterpret extends Interpret {
+
+	/** The initial state of the reversed automaton */
+	protected SuffixState suffixRoot = new SuffixState();
+
+	@Override
+	public void init(Interpret existingInterpret) {
+		super.init(existingInterpret);
+		if (existingInterpret instanceof ReverseInterpret) {
+			suffixRoot = ((ReverseInterpret) existingInterpret).suffixRoot;
+		}
+	}
+
+	@Override
+	protected void resetAutomaton() {
+		super.resetAutomaton();
+		suffixRoot = new SuffixState();
+	}
+
+	/**
+	 * Adds the fixed trailing parts of the alternative to the reversed
+	 * automaton. Parts are consumed from the right until the first repeated
+	 * part; a repeated part with a '+' contributes its one mandatory
+	 * occurrence. Whatever is left is a prefix which is verified by the
+	 * pattern of the rule when it fires.
+	 */
+	@Override
+	protected void compileRule(RHS rhs, PatternPart[] parts) {
+		Set<SuffixState> states = new HashSet<SuffixState>();
+		states.add(suffixRoot);
+		int i = parts.length - 1;
+		for (; i >= 0; i--) {
+			String string = parts[i].getPartString();
+			int type = parts[i].getType();
+			if (type == ParsingFunctions.AND || type == ParsingFunctions.AND_PLUS) {
+				for (int j = string.length() - 1; j >= 0; j--) {
+					Set<SuffixState> nextStates = new HashSet<SuffixState>();
+					Iterator<SuffixState> iter = states.iterator();
+					while (iter.hasNext()) {
+						nextStates.add(iter.next().child(string.charAt(j)));
+					}
+					states = nextStates;
+				}
+			} else if (type == ParsingFunctions.OR
+					|| type == ParsingFunctions.OR_PLUS) {
+				Set<SuffixState> nextStates = new HashSet<SuffixState>();
+				Iterator<SuffixState> iter = states.iterator();
+				while (iter.hasNext()) {
+					SuffixState state = iter.next();
+					for (int j = 0; j < string.length(); j++) {
+						nextStates.add(state.child(string.charAt(j)));
+					}
+				}
+				states = nextStates;
+			} else {
+				// (abc)* or [abc]*
+				break;
+			}
+
+			if (type == ParsingFunctions.AND_PLUS
+					|| type == ParsingFunctions.OR_PLUS) {
+				// one occurrence is consumed, any further ones are a prefix
+				break;
+			}
+		}
+
+		if (profileRules) {
+			frontier = Math.max(frontier, states.size());
+		}
+
+		boolean hasPrefix = i >= 0;
+		Iterator<SuffixState> iter = states.iterator();
+		while (iter.hasNext()) {
+			SuffixState state = iter.next();
+			if (hasPrefix) {
+				state.addOpenRHS(rhs);
+			} else {
+				state.addExactRHS(rhs);
+			}
+		}
+	}
+
+	@Override
+	protected int[] measureAutomaton() {
+		return suffixRoot.measure();
+	}
+
+	@Override
+	protected SortedSet<RHS> findRHSes(String word) {
+		SortedSet<RHS> rhses = new TreeSet<RHS>(RHS_ORDER);
+		SuffixState state = suffixRoot;
+		int i = word.length();
+		while (true) {
+			rhses.addAll(state.getOpenRHSes());
+			if (i == 0) {
+				rhses.addAll(state.getExactRHSes());
+				break;
+			}
+			state = state.next(charClasses.classOf(word.charAt(--i)));
+			if (state == null) {
+				// no longer suffix can match
+				break;
+			}
+		}
+		return rhses;
+	}
+}
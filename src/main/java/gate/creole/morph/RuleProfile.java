@@ -0,0 +1,104 @@
+package gate.creole.morph;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * Title: RuleProfile.java
+ * </p>
+ * <p>
+ * Description: What compiling one rule of a rule file cost: the time spent
+ * parsing and normalising its pattern and adding it to the automaton, the
+ * number of alternatives its pattern was expanded into, the largest set of
+ * states it was being added from at once (the frontier), and the number of
+ * states and transitions it added. Profiles are recorded by
+ * {@link Interpret} when asked with {@link Interpret#setProfileRules(boolean)}.
+ * </p>
+ */
+public class RuleProfile {
+
+	int line;
+
+	String text;
+
+	long parseNanos;
+
+	long compileNanos;
+
+	int alternatives;
+
+	int maxFrontier;
+
+	int statesAdded;
+
+	int transitionsAdded;
+
+	/**
+	 * Orders profiles by decreasing total time
+	 */
+	public static final Comparator<RuleProfile> BY_TIME = new Comparator<RuleProfile>() {
+		@Override
+		public int compare(RuleProfile p1, RuleProfile p2) {
+			return Long.compare(p2.getTotalNanos(), p1.getTotalNanos());
+		}
+	};
+
+	public int getLine() {
+		return line;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+	public long getCompileNanos() {
+		return compileNanos;
+	}
+
+	public long getTotalNanos() {
+		return parseNanos + compileNanos;
+	}
+
+	public int getAlternatives() {
+		return alternatives;
+	}
+
+	public int getMaxFrontier() {
+		return maxFrontier;
+	}
+
+	public int getStatesAdded() {
+		return statesAdded;
+	}
+
+	public int getTransitionsAdded() {
+		return transitionsAdded;
+	}
+
+	/**
+	 * Writes the profiles as tab separated lines, slowest rule first, after a
+	 * header line
+	 */
+	public static void writeReport(List<RuleProfile> profiles, Writer out)
+			throws IOException {
+		List<RuleProfile> sorted = new ArrayList<RuleProfile>(profiles);
+		Collections.sort(sorted, BY_TIME);
+		out.write("line\ttotal us\tparse us\tcompile us\talternatives\tfrontier\tstates\ttransitions\trule\n");
+		for (RuleProfile profile : sorted) {
+			out.write(profile.line + "\t" + profile.getTotalNanos() / 1000 + "\t"
+					+ profile.parseNanos / 1000 + "\t" + profile.compileNanos / 1000
+					+ "\t" + profile.alternatives + "\t" + profile.maxFrontier
+					+ "\t" + profile.statesAdded + "\t" + profile.transitionsAdded
+					+ "\t" + profile.text.trim() + "\n");
+		}
+	}
+}
@@ -1,7 +1,10 @@
 package gate.creole.morph;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>Title: Storage.java </p>
@@ -16,6 +19,9 @@ public class Storage {
    */
   private Map<String, String> variables;
 
+  /** Variables inherited from the rules this storage builds on, if any */
+  private Storage parent;
+
   /**
    * Constructor
    */
@@ -23,6 +29,16 @@ public class Storage {
     variables = new HashMap<String, String>();
   }
 
+  /**
+   * Creates a storage which also sees the variables of the given one. Its
+   * own variables may redefine the inherited ones.
+   * @param parent the variables to inherit
+   */
+  public Storage(Storage parent) {
+    this();
+    this.parent = parent;
+  }
+
   /**
    * Adds the variable name and its value into the hashTable
    * @param varName name of the variable
@@ -51,7 +67,11 @@ public class Storage {
    * @return value of the variable if variable found in the table,null otherwise
    */
   public String get(String varName) {
-    return variables.get(varName);
+    String value = variables.get(varName);
+    if(value == null && parent != null) {
+      return parent.get(varName);
+    }
+    return value;
   }
 
   /**
@@ -60,7 +80,8 @@ public class Storage {
    * @return true if variable exists, false otherwise
    */
   public boolean isExist(String varName) {
-    return variables.containsKey(varName);
+    return variables.containsKey(varName)
+        || (parent != null && parent.isExist(varName));
   }
 
   /**
@@ -79,6 +100,11 @@ public class Storage {
    * @return array of Strings - names of the variables
    */
   public String [] getVarNames() {
-    return variables.keySet().toArray(new String[variables.size()]);
+    if(parent == null) {
+      return variables.keySet().toArray(new String[variables.size()]);
+    }
+    Set<String> names = new HashSet<String>(variables.keySet());
+    names.addAll(Arrays.asList(parent.getVarNames()));
+    return names.toArray(new String[names.size()]);
   }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package gate.creole.morph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A node of the reversed (suffix-first) automaton used by
+ * {@link ReverseInterpret}. Each node is reached by reading a word from its
+ * last character backwards and knows which rules have their fixed suffix
+ * fully matched at this point.
+ */
+public class SuffixState {
+	private char[] keys = null;
+
+	private SuffixState[] children = null;
+
+	/** rules that still need a (possibly empty) prefix to be checked */
+	private List<RHS> openRHSes = new ArrayList<RHS>();
+
+	/** rules that only match if the whole word has been read */
+	private List<RHS> exactRHSes = new ArrayList<RHS>();
+
+	/**
+	 * returns the state reached by reading the given character, or null if no
+	 * rule continues with it
+	 */
+	public SuffixState next(char ch) {
+		if (keys == null)
+			return null;
+		int index = Arrays.binarySearch(keys, ch);
+		if (index < 0)
+			return null;
+		return children[index];
+	}
+
+	/**
+	 * returns the state reached by the given character, creating it if it does
+	 * not exist yet
+	 */
+	public SuffixState child(char ch) {
+		if (keys == null) {
+			keys = new char[] {ch};
+			children = new SuffixState[] {new SuffixState()};
+			return children[0];
+		}
+		int index = Arrays.binarySearch(keys, ch);
+		if (index >= 0)
+			return children[index];
+		index = ~index;
+		char[] tempKeys = new char[keys.length + 1];
+		SuffixState[] tempChildren = new SuffixState[keys.length + 1];
+		System.arraycopy(keys, 0, tempKeys, 0, index);
+		System.arraycopy(children, 0, tempChildren, 0, index);
+		System.arraycopy(keys, index, tempKeys, index + 1, keys.length - index);
+		System.arraycopy(children, index, tempChildren, index + 1,
+				keys.length - index);
+		tempKeys[index] = ch;
+		tempChildren[index] = new SuffixState();
+		keys = tempKeys;
+		children = tempChildren;
+		return children[index];
+	}
+
+	/**
+	 * returns the number of states and the number of transitions of the
+	 * automaton starting at this state
+	 */
+	public int[] measure() {
+		int[] size = { 1, 0 };
+		if (children != null) {
+			size[1] += children.length;
+			for (SuffixState child : children) {
+				int[] childSize = child.measure();
+				size[0] += childSize[0];
+				size[1] += childSize[1];
+			}
+		}
+		return size;
+	}
+
+	public List<RHS> getOpenRHSes() {
+		return openRHSes;
+	}
+
+	public void addOpenRHS(RHS rhs) {
+		if (!openRHSes.contains(rhs))
+			openRHSes.add(rhs);
+	}
+
+	public List<RHS> getExactRHSes() {
+		return exactRHSes;
+	}
+
+	public void addExactRHS(RHS rhs) {
+		if (!exactRHSes.contains(rhs))
+			exactRHSes.add(rhs);
+	}
+}
@@ -16,14 +16,25 @@
 
 package gate.creole.gazetteer;
 
+import gate.Annotation;
 import gate.AnnotationSet;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
+import gate.corpora.DocumentImpl;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceReference;
 import gate.test.GATEPluginTestCase;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 public class TestFlexibleGazetteer extends GATEPluginTestCase {
 
@@ -34,6 +45,367 @@ public class TestFlexibleGazetteer extends GATEPluginTestCase {
   public void tearDown() throws Exception {
   } // tearDown
 
+  /**
+   * Tests that the temporary document is reused with new content and
+   * without the annotations of the previous run, and that looking up a
+   * document after another one finds what a new PR finds
+   */
+  public void testTemporaryDocument() throws Exception {
+    Document original = Factory.newDocument("original");
+    FlexGazTemporaryDocument temporary = new FlexGazTemporaryDocument();
+    Document first = temporary.get("first text", original);
+    first.getAnnotations().add(0L, 5L, "Token", Factory.newFeatureMap());
+    first.getAnnotations("Output").add(6L, 10L, "Lookup",
+        Factory.newFeatureMap());
+    temporary.clear();
+    Document second = temporary.get("second", original);
+    assertSame(first, second);
+    assertEquals("second", second.getContent().toString());
+    assertTrue(second.getAnnotations().isEmpty());
+    assertTrue(second.getAnnotationSetNames() == null
+        || !second.getAnnotationSetNames().contains("Output"));
+    // the settings come from the original of each call
+    DocumentImpl other = (DocumentImpl) Factory.newDocument("other");
+    other.setEncoding("UTF-16");
+    other.setMarkupAware(Boolean.TRUE);
+    temporary.clear();
+    Document third = temporary.get("third", other);
+    assertSame(first, third);
+    assertEquals("UTF-16", ((DocumentImpl) third).getEncoding());
+    assertEquals(Boolean.TRUE, third.getMarkupAware());
+    temporary.delete();
+    Factory.deleteResource(other);
+
+    Gazetteer gazetteerInst = createTestGazetteer(true);
+    Document doc1 = newTokenDocument("nu yrk cty", "norm", "New", "York", "City");
+    Document doc2 = newTokenDocument("yrk nu cty", "norm", "York", "New", "City");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", Collections.singletonList("Token.norm"));
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("outputASName", "reused");
+    FlexibleGazetteer reused = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    params.put("outputASName", "fresh");
+    FlexibleGazetteer fresh = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+
+    reused.setDocument(doc1);
+    reused.execute();
+    reused.setDocument(doc2);
+    reused.execute();
+    fresh.setDocument(doc2);
+    fresh.execute();
+    assertEquals("[0-10, 3-6]", lookupSpans(doc1.getAnnotations("reused")));
+    assertEquals("[0-3]", lookupSpans(doc2.getAnnotations("reused")));
+    assertEquals(lookupSpans(doc2.getAnnotations("fresh")),
+        lookupSpans(doc2.getAnnotations("reused")));
+    // and again on the first document
+    reused.setDocument(doc1);
+    reused.setOutputASName("again");
+    reused.execute();
+    assertEquals(lookupSpans(doc1.getAnnotations("reused")),
+        lookupSpans(doc1.getAnnotations("again")));
+
+    Factory.deleteResource(original);
+    Factory.deleteResource(doc1);
+    Factory.deleteResource(doc2);
+    Factory.deleteResource(reused);
+    Factory.deleteResource(fresh);
+    Factory.deleteResource(gazetteerInst);
+  }
+
+  /**
+   * Tests that the texts of several features, built in one pass, are those
+   * of each feature on its own, and that looking them up at once finds the
+   * Lookups of each feature
+   */
+  public void testRewriteSeveralFeatures() throws Exception {
+    Document doc = Factory.newDocument("The cats went home.");
+    AnnotationSet tokens = doc.getAnnotations();
+    addToken(tokens, 0, 3, "root", "the", "upper", "THE");
+    addToken(tokens, 4, 8, "root", "cat");
+    addToken(tokens, 9, 13, "root", "go", "upper", "WENT");
+    addToken(tokens, 14, 18, "root", "home", "upper", "HOME");
+    String content = doc.getContent().toString();
+    List<Annotation> sorted = gate.Utils.inDocumentOrder(tokens);
+
+    List<FlexibleGazetteer.RewrittenText> texts = FlexibleGazetteer.rewrite(
+        content, 0, content.length(), "Token", Arrays.asList("root", "upper"),
+        sorted);
+    assertEquals(2, texts.size());
+    FlexibleGazetteer.RewrittenText root = texts.get(0);
+    FlexibleGazetteer.RewrittenText upper = texts.get(1);
+    assertEquals("Token.root", root.feature);
+    assertEquals("the cat go home.", root.text.toString());
+    assertEquals(4, root.mappingTable.size());
+    assertEquals(9, root.mappingTable.getBestOriginalStart(8));
+    assertEquals(13, root.mappingTable.getBestOriginalEnd(10));
+    assertEquals("Token.upper", upper.feature);
+    // the token without the feature is left as it is
+    assertEquals("THE cats WENT HOME.", upper.text.toString());
+    assertEquals(3, upper.mappingTable.size());
+    assertEquals(9, upper.mappingTable.getBestOriginalStart(9));
+    assertFalse(upper.mappingTable.isCovered(6));
+
+    // part of the content only, as for a window
+    texts = FlexibleGazetteer.rewrite(content, 4, 13, "Token",
+        Arrays.asList("root", "upper"),
+        FlexibleGazetteer.getAnnotationsWithin(sorted, 4, 13));
+    assertEquals("cat go", texts.get(0).text.toString());
+    assertEquals("cats WENT", texts.get(1).text.toString());
+    assertEquals(9, texts.get(1).mappingTable.getBestOriginalStart(5));
+    Factory.deleteResource(doc);
+
+    Gazetteer gazetteerInst = createTestGazetteer(true);
+    doc = newTokenDocument("nu yrk cty", "norm", "New", "York", "City");
+    tokens = doc.getAnnotations();
+    for(Annotation token : tokens) {
+      if(gate.Utils.start(token) == 3) token.getFeatures().put("alt", "York");
+      if(gate.Utils.start(token) == 7) token.getFeatures().put("alt", "York");
+    }
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("inputFeatureNames", Arrays.asList("Token.norm", "Token.alt"));
+    params.put("outputASName", "both");
+    FlexibleGazetteer both = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    params.put("inputFeatureNames", Collections.singletonList("Token.norm"));
+    params.put("outputASName", "each");
+    FlexibleGazetteer norm = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    params.put("inputFeatureNames", Collections.singletonList("Token.alt"));
+    FlexibleGazetteer alt = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    for(FlexibleGazetteer flexGaz : new FlexibleGazetteer[] {both, norm, alt}) {
+      flexGaz.setDocument(doc);
+      flexGaz.execute();
+    }
+    assertEquals("[0-10, 3-6, 7-10]", lookupSpans(doc.getAnnotations("both")));
+    assertEquals(lookupSpans(doc.getAnnotations("each")),
+        lookupSpans(doc.getAnnotations("both")));
+    // the Lookup both features find is added once
+    assertEquals(1, both.getMetrics().getLookupsDuplicate());
+
+    Factory.deleteResource(doc);
+    Factory.deleteResource(both);
+    Factory.deleteResource(norm);
+    Factory.deleteResource(alt);
+    Factory.deleteResource(gazetteerInst);
+  }
+
+  /**
+   * Tests matching the entries of the token trie over several words, with
+   * and without case, only the longest match, and words missing
+   */
+  public void testTokenTrie() throws Exception {
+    FlexGazTokenTrie trie = new FlexGazTokenTrie(true);
+    FlexGazTokenTrie.Entry newYork =
+        new FlexGazTokenTrie.Entry("Lookup", Factory.newFeatureMap());
+    FlexGazTokenTrie.Entry newYorkCity =
+        new FlexGazTokenTrie.Entry("Lookup", Factory.newFeatureMap());
+    FlexGazTokenTrie.Entry york =
+        new FlexGazTokenTrie.Entry("Lookup", Factory.newFeatureMap());
+    trie.add("New York", newYork);
+    trie.add(" New  York\tCity ", newYorkCity);
+    trie.add("York", york);
+    assertEquals(3, trie.size());
+
+    String[] words = {"New", "York", "City", null, "York"};
+    List<Integer> ends = new ArrayList<Integer>();
+    List<FlexGazTokenTrie.Entry> entries = new ArrayList<FlexGazTokenTrie.Entry>();
+    trie.match(words, 0, ends, entries);
+    assertEquals(Arrays.asList(1, 2), ends);
+    assertEquals(Arrays.asList(newYork, newYorkCity), entries);
+    ends.clear();
+    entries.clear();
+    trie.match(words, 0, ends, entries, true);
+    assertEquals(Collections.singletonList(2), ends);
+    assertEquals(Collections.singletonList(newYorkCity), entries);
+    ends.clear();
+    entries.clear();
+    trie.match(words, 1, ends, entries, true);
+    assertEquals(Collections.singletonList(york), entries);
+
+    // a missing word breaks a match
+    ends.clear();
+    entries.clear();
+    trie.match(new String[] {"New", null, "York"}, 0, ends, entries);
+    assertTrue(entries.isEmpty());
+
+    // case
+    ends.clear();
+    entries.clear();
+    trie.match(new String[] {"new", "york"}, 0, ends, entries);
+    assertTrue(entries.isEmpty());
+    FlexGazTokenTrie caseless = new FlexGazTokenTrie(false);
+    caseless.add("New York", newYork);
+    assertEquals("new", caseless.normalise("NEW"));
+    caseless.match(new String[] {caseless.normalise("NEW"),
+        caseless.normalise("york")}, 0, ends, entries);
+    assertEquals(Collections.singletonList(newYork), entries);
+  }
+
+  /**
+   * Tests looking up the feature values directly: Lookups over several
+   * tokens, the longestMatchOnly and caseSensitive parameters of the
+   * gazetteer, tokens without the feature, and whole words only
+   */
+  public void testDirectTokenLookup() throws Exception {
+    Gazetteer gazetteerInst = createTestGazetteer(true);
+    Document doc = newTokenDocument("nu yrk cty , yrk nu ? yrk", "norm",
+        "New", "York", "City", null, "York", "New", null, "York");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", Collections.singletonList("Token.norm"));
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("directTokenLookup", Boolean.TRUE);
+    params.put("outputASName", "longest");
+    FlexibleGazetteer flexGaz = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    flexGaz.setDocument(doc);
+    flexGaz.execute();
+    // the token without the feature breaks "New York" at the end
+    assertEquals("[0-10, 3-6, 13-16, 22-25]",
+        lookupSpans(doc.getAnnotations("longest")));
+    Annotation lookup = gate.Utils.inDocumentOrder(
+        doc.getAnnotations("longest")).get(0);
+    assertEquals("location", lookup.getFeatures().get("majorType"));
+    assertEquals("city", lookup.getFeatures().get("minorType"));
+    // the same Lookups as the rewritten document gives
+    flexGaz.setDirectTokenLookup(Boolean.FALSE);
+    flexGaz.setOutputASName("rewritten");
+    flexGaz.execute();
+    assertEquals(lookups(doc.getAnnotations("rewritten")),
+        lookups(doc.getAnnotations("longest")));
+
+    flexGaz.setDirectTokenLookup(Boolean.TRUE);
+    gazetteerInst.setParameterValue("longestMatchOnly", Boolean.FALSE);
+    flexGaz.setOutputASName("all");
+    flexGaz.execute();
+    assertEquals("[0-6, 0-10, 3-6, 13-16, 22-25]",
+        lookupSpans(doc.getAnnotations("all")));
+
+    // a value only matches a whole entry word, whatever wholeWordsOnly says
+    gazetteerInst.setParameterValue("wholeWordsOnly", Boolean.FALSE);
+    Document partial = newTokenDocument("yksh nwyrk", "norm",
+        "Yorkshire", "NewYork");
+    flexGaz.setDocument(partial);
+    flexGaz.setOutputASName("partial");
+    flexGaz.execute();
+    assertEquals("[]", lookupSpans(partial.getAnnotations("partial")));
+    Factory.deleteResource(partial);
+
+    // case
+    Document lower = newTokenDocument("nu yrk", "norm", "new", "york");
+    flexGaz.setDocument(lower);
+    flexGaz.setOutputASName("sensitive");
+    flexGaz.execute();
+    assertEquals("[]", lookupSpans(lower.getAnnotations("sensitive")));
+    Gazetteer caseless = createTestGazetteer(false);
+    flexGaz.setGazetteerInst(caseless);
+    flexGaz.setOutputASName("insensitive");
+    flexGaz.execute();
+    assertEquals("[0-6, 3-6]", lookupSpans(lower.getAnnotations("insensitive")));
+
+    Factory.deleteResource(lower);
+    Factory.deleteResource(doc);
+    Factory.deleteResource(flexGaz);
+    Factory.deleteResource(gazetteerInst);
+    Factory.deleteResource(caseless);
+  }
+
+  /**
+   * Tests that direct token lookup fails with a gazetteer that does not give
+   * access to its lists
+   */
+  public void testDirectTokenLookupWithoutLists() throws Exception {
+    Gazetteer noLists = (Gazetteer)Proxy.newProxyInstance(
+        Gazetteer.class.getClassLoader(), new Class<?>[] {Gazetteer.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            // no lists, and nothing else either
+            return null;
+          }
+        });
+    Document doc = newTokenDocument("nu yrk", "norm", "New", "York");
+    FlexibleGazetteer flexGaz = new FlexibleGazetteer();
+    flexGaz.setGazetteerInst(noLists);
+    flexGaz.setInputFeatureNames(Collections.singletonList("Token.norm"));
+    flexGaz.setDirectTokenLookup(Boolean.TRUE);
+    flexGaz.setDocument(doc);
+    try {
+      flexGaz.execute();
+      fail("No exception without the lists of the gazetteer");
+    } catch(ExecutionException ee) {
+      assertTrue(ee.getMessage().contains("direct token lookup"));
+    }
+    assertTrue(doc.getAnnotations().get("Lookup").isEmpty());
+    Factory.deleteResource(doc);
+  }
+
+  /**
+   * Creates a gazetteer of the cities of the test lists
+   */
+  private Gazetteer createTestGazetteer(boolean caseSensitive)
+      throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("listsURL", new ResourceReference(
+        this.getClass().getResource("/tests/gazetteer/lists.def")));
+    params.put("caseSensitive", caseSensitive);
+    return (Gazetteer) Factory.createResource(
+        "gate.creole.gazetteer.DefaultGazetteer", params);
+  }
+
+  /**
+   * Creates a document with a Token for each word of the text separated by
+   * single spaces, with the given values of the feature; a null value
+   * leaves the token without the feature.
+   */
+  private static Document newTokenDocument(String text, String feature,
+      String... values) throws Exception {
+    Document doc = Factory.newDocument(text);
+    long start = 0;
+    String[] words = text.split(" ");
+    for(int i = 0; i < words.length; i++) {
+      if(values[i] == null) {
+        addToken(doc.getAnnotations(), start, start + words[i].length());
+      } else {
+        addToken(doc.getAnnotations(), start, start + words[i].length(),
+            feature, values[i]);
+      }
+      start += words[i].length() + 1;
+    }
+    return doc;
+  }
+
+  /**
+   * Adds a Token with the given feature names and values
+   */
+  private static void addToken(AnnotationSet annotations, long start,
+      long end, String... features) throws Exception {
+    FeatureMap featureMap = Factory.newFeatureMap();
+    for(int i = 0; i < features.length; i += 2) {
+      featureMap.put(features[i], features[i + 1]);
+    }
+    annotations.add(start, end, "Token", featureMap);
+  }
+
+  /**
+   * Returns the spans of the Lookups, sorted by start and end offset
+   */
+  private static String lookupSpans(AnnotationSet annotations) {
+    List<Annotation> lookups = new ArrayList<Annotation>(annotations.get("Lookup"));
+    Collections.sort(lookups, new Comparator<Annotation>() {
+      @Override
+      public int compare(Annotation a1, Annotation a2) {
+        int result = gate.Utils.start(a1).compareTo(gate.Utils.start(a2));
+        return result != 0 ? result : gate.Utils.end(a1).compareTo(
+            gate.Utils.end(a2));
+      }
+    });
+    return spans(lookups);
+  }
+
   /** Tests the flexible gazetteer */
   public void testFlexibleGazetteer() throws Exception {
     //get a document - take it from the gate server.
@@ -71,6 +443,7 @@ public class TestFlexibleGazetteer extends GATEPluginTestCase {
     testInputFeatures.add("Token.root");
     params.put("inputFeatureNames", testInputFeatures);
     params.put("gazetteerInst",gazetteerInst);
+    params.put("metricsFeatureName", "flexGazMetrics");
 
     // Actually create the gazateer
     FlexibleGazetteer flexGaz = (FlexibleGazetteer) Factory.createResource(
@@ -106,6 +479,13 @@ public class TestFlexibleGazetteer extends GATEPluginTestCase {
     }
     assertEquals("Wrong number of lookup annotations",54,lookups.size());
 
+    // every Lookup found is accounted for in the metrics
+    FlexGazMetrics metrics = flexGaz.getMetrics();
+    assertEquals(lookups.size(), metrics.getLookupsAdded());
+    assertEquals(metrics.getLookupsFound(), metrics.getLookupsFiltered()
+        + metrics.getLookupsDuplicate() + metrics.getLookupsAdded());
+    assertEquals(metrics.toMap(), doc.getFeatures().get("flexGazMetrics"));
+
     // Now clean up so we don't get a memory leak.
     Factory.deleteResource(doc);
     Factory.deleteResource(tokeniser);
@@ -114,4 +494,573 @@ public class TestFlexibleGazetteer extends GATEPluginTestCase {
   }
 
 
+  /**
+   * Tests that looking up several features on duplicates of the gazetteer
+   * finds the same Lookups as looking them up in turn
+   */
+  public void testGazetteerPool() throws Exception {
+    Document doc = Factory.newDocument(this.getClass().getResource("/tests/doc0.html"));
+
+    gate.creole.tokeniser.DefaultTokeniser tokeniser=
+        (gate.creole.tokeniser.DefaultTokeniser) Factory.createResource(
+        "gate.creole.tokeniser.DefaultTokeniser");
+    gate.creole.morph.Morph morphologicalAnalyser=
+        (gate.creole.morph.Morph) Factory.createResource(
+        "gate.creole.morph.Morph");
+    gate.creole.gazetteer.Gazetteer gazetteerInst =
+        (gate.creole.gazetteer.DefaultGazetteer) Factory.createResource(
+        "gate.creole.gazetteer.DefaultGazetteer");
+
+    List<String> testInputFeatures=new ArrayList<String>();
+    testInputFeatures.add("Token.root");
+    testInputFeatures.add("Token.string");
+    testInputFeatures.add("Token.kind");
+
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", testInputFeatures);
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("outputASName", "serial");
+    FlexibleGazetteer serial = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+
+    params.put("gazetteerPoolSize", 3);
+    params.put("outputASName", "pooled");
+    FlexibleGazetteer pooled = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    FlexibleGazetteer duplicate = (FlexibleGazetteer) Factory.duplicate(pooled);
+    duplicate.setOutputASName("duplicate");
+
+    tokeniser.setDocument(doc);
+    tokeniser.execute();
+    morphologicalAnalyser.setDocument(doc);
+    morphologicalAnalyser.execute();
+    for(FlexibleGazetteer flexGaz : new FlexibleGazetteer[] {serial, pooled, duplicate}) {
+      flexGaz.setDocument(doc);
+      flexGaz.execute();
+    }
+
+    String expected = lookups(doc.getAnnotations("serial"));
+    assertEquals(expected, lookups(doc.getAnnotations("pooled")));
+    assertEquals(expected, lookups(doc.getAnnotations("duplicate")));
+
+    Factory.deleteResource(doc);
+    Factory.deleteResource(tokeniser);
+    Factory.deleteResource(morphologicalAnalyser);
+    Factory.deleteResource(duplicate);
+    Factory.deleteResource(pooled);
+    Factory.deleteResource(serial);
+  }
+
+  /**
+   * Tests that looking up the document in windows of a few sentences finds
+   * the Lookups found by looking it up at once
+   */
+  public void testWindowedLookup() throws Exception {
+    Document doc = Factory.newDocument(this.getClass().getResource("/tests/doc0.html"));
+
+    gate.creole.tokeniser.DefaultTokeniser tokeniser=
+        (gate.creole.tokeniser.DefaultTokeniser) Factory.createResource(
+        "gate.creole.tokeniser.DefaultTokeniser");
+    gate.creole.splitter.SentenceSplitter splitter =
+        (gate.creole.splitter.SentenceSplitter) Factory.createResource(
+        "gate.creole.splitter.SentenceSplitter");
+    gate.creole.morph.Morph morphologicalAnalyser=
+        (gate.creole.morph.Morph) Factory.createResource(
+        "gate.creole.morph.Morph");
+    gate.creole.gazetteer.Gazetteer gazetteerInst =
+        (gate.creole.gazetteer.DefaultGazetteer) Factory.createResource(
+        "gate.creole.gazetteer.DefaultGazetteer");
+
+    List<String> testInputFeatures=new ArrayList<String>();
+    testInputFeatures.add("Token.root");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", testInputFeatures);
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("outputASName", "whole");
+    FlexibleGazetteer whole = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    params.put("outputASName", "windowed");
+    params.put("windowAnnotationType", "Sentence");
+    params.put("windowSize", 200);
+    params.put("windowOverlap", 1);
+    FlexibleGazetteer windowed = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+
+    tokeniser.setDocument(doc);
+    tokeniser.execute();
+    splitter.setDocument(doc);
+    splitter.execute();
+    morphologicalAnalyser.setDocument(doc);
+    morphologicalAnalyser.execute();
+    whole.setDocument(doc);
+    whole.execute();
+    windowed.setDocument(doc);
+    windowed.execute();
+
+    List<String> wholeLookups = lookupList(doc.getAnnotations("whole"));
+    List<String> windowedLookups = lookupList(doc.getAnnotations("windowed"));
+    assertTrue("No lookups found", wholeLookups.size() > 0);
+    // Lookups cut short at the end of a window may be found as well
+    assertTrue("Lookups missed", windowedLookups.containsAll(wholeLookups));
+
+    Factory.deleteResource(doc);
+    Factory.deleteResource(tokeniser);
+    Factory.deleteResource(splitter);
+    Factory.deleteResource(morphologicalAnalyser);
+    Factory.deleteResource(whole);
+    Factory.deleteResource(windowed);
+  }
+
+  /**
+   * Tests that, without overlap between windows, an input annotation across
+   * the boundary of two windows is rewritten in the window it starts in
+   */
+  public void testWindowStraddlingAnnotation() throws Exception {
+    Gazetteer gazetteerInst = createTestGazetteer(true);
+    Document doc = newTokenDocument("nu yrk cty", "norm", "New", "York", "City");
+    // the second window starts in the middle of "yrk"
+    doc.getAnnotations().add(0L, 5L, "Sentence", Factory.newFeatureMap());
+    doc.getAnnotations().add(5L, 10L, "Sentence", Factory.newFeatureMap());
+    List<Annotation> tokens = gate.Utils.inDocumentOrder(
+        doc.getAnnotations().get("Token"));
+    assertEquals(2, FlexibleGazetteer.getAnnotationsStartingWithin(
+        tokens, 0, 5).size());
+    assertEquals(1, FlexibleGazetteer.getAnnotationsStartingWithin(
+        tokens, 5, 10).size());
+
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", Collections.singletonList("Token.norm"));
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("windowAnnotationType", "Sentence");
+    params.put("windowSize", 5);
+    params.put("windowOverlap", 0);
+    params.put("outputASName", "windowed");
+    FlexibleGazetteer windowed = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    windowed.setDocument(doc);
+    windowed.execute();
+
+    // "New York City" spans the two windows, but "New York" and "York"
+    // are found in the first one
+    assertEquals("[0-6, 3-6]", lookupSpans(doc.getAnnotations("windowed")));
+
+    Factory.deleteResource(doc);
+    Factory.deleteResource(windowed);
+    Factory.deleteResource(gazetteerInst);
+  }
+
+  /**
+   * Tests that the Lookup index only reads the annotations of the range
+   * being transferred, and that running a windowed lookup again over the
+   * same output set adds nothing
+   */
+  public void testLookupIndex() throws Exception {
+    Document doc = Factory.newDocument("0123456789012345678901234567890");
+    AnnotationSet output = doc.getAnnotations("Output");
+    FeatureMap features = Factory.newFeatureMap();
+    features.put("majorType", "location");
+    output.add(2L, 5L, "Lookup", features);
+    output.add(22L, 25L, "Lookup", features);
+
+    FlexGazLookupIndex index = new FlexGazLookupIndex(output);
+    index.setRange(0, 10);
+    assertTrue(index.contains(2, 5, "Lookup", features));
+    // not read yet
+    assertFalse(index.contains(22, 25, "Lookup", features));
+    index.setRange(8, 30);
+    assertTrue(index.contains(22, 25, "Lookup", features));
+    assertTrue(index.contains(2, 5, "Lookup", features));
+    assertFalse(index.add(22, 25, "Lookup", features));
+    assertTrue(index.add(12, 15, "Lookup", features));
+    assertFalse(index.add(12, 15, "Lookup", features));
+    // without a range, the whole set is read
+    index = new FlexGazLookupIndex(output);
+    assertTrue(index.contains(22, 25, "Lookup", features));
+    Factory.deleteResource(doc);
+
+    Gazetteer gazetteerInst = createTestGazetteer(true);
+    doc = newTokenDocument("nu yrk cty nu yrk", "norm", "New", "York",
+        "City", "New", "York");
+    doc.getAnnotations().add(0L, 11L, "Sentence", Factory.newFeatureMap());
+    doc.getAnnotations().add(11L, 17L, "Sentence", Factory.newFeatureMap());
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", Collections.singletonList("Token.norm"));
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("windowAnnotationType", "Sentence");
+    params.put("windowSize", 11);
+    params.put("windowOverlap", 0);
+    FlexibleGazetteer windowed = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    windowed.setDocument(doc);
+    windowed.execute();
+    String expected = "[0-10, 3-6, 11-17, 14-17]";
+    assertEquals(expected, lookupSpans(doc.getAnnotations()));
+    windowed.execute();
+    assertEquals(expected, lookupSpans(doc.getAnnotations()));
+    assertEquals(0, windowed.getMetrics().getLookupsAdded());
+    assertEquals(4, windowed.getMetrics().getLookupsDuplicate());
+
+    Factory.deleteResource(doc);
+    Factory.deleteResource(windowed);
+    Factory.deleteResource(gazetteerInst);
+  }
+
+  /**
+   * Tests that the Lookups of sentences taken from the segment cache are
+   * those the gazetteer finds in them
+   */
+  public void testSegmentCache() throws Exception {
+    Document doc = Factory.newDocument(this.getClass().getResource("/tests/doc0.html"));
+
+    gate.creole.tokeniser.DefaultTokeniser tokeniser=
+        (gate.creole.tokeniser.DefaultTokeniser) Factory.createResource(
+        "gate.creole.tokeniser.DefaultTokeniser");
+    gate.creole.splitter.SentenceSplitter splitter =
+        (gate.creole.splitter.SentenceSplitter) Factory.createResource(
+        "gate.creole.splitter.SentenceSplitter");
+    gate.creole.morph.Morph morphologicalAnalyser=
+        (gate.creole.morph.Morph) Factory.createResource(
+        "gate.creole.morph.Morph");
+    gate.creole.gazetteer.Gazetteer gazetteerInst =
+        (gate.creole.gazetteer.DefaultGazetteer) Factory.createResource(
+        "gate.creole.gazetteer.DefaultGazetteer");
+
+    List<String> testInputFeatures=new ArrayList<String>();
+    testInputFeatures.add("Token.root");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", testInputFeatures);
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("outputASName", "uncached");
+    FlexibleGazetteer uncached = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+    params.put("segmentAnnotationType", "Sentence");
+    params.put("segmentCacheSize", 10000);
+    FlexibleGazetteer cached = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+
+    tokeniser.setDocument(doc);
+    tokeniser.execute();
+    splitter.setDocument(doc);
+    splitter.execute();
+    morphologicalAnalyser.setDocument(doc);
+    morphologicalAnalyser.execute();
+    uncached.setDocument(doc);
+    uncached.execute();
+    cached.setDocument(doc);
+    cached.setOutputASName("first");
+    cached.execute();
+    assertTrue("No segments cached", cached.getSegmentCache().size() > 0);
+    // the second time, every sentence is in the cache
+    cached.setOutputASName("second");
+    cached.execute();
+    assertTrue("No cache hits", cached.getMetrics().getSegmentHits() > 0);
+    assertEquals("Cache misses", 0, cached.getMetrics().getSegmentMisses());
+
+    // Lookups across two sentences cannot be taken from the cache
+    List<String> expected = new ArrayList<String>();
+    AnnotationSet uncachedLookups = doc.getAnnotations("uncached");
+    for(Annotation lookup : gate.Utils.inDocumentOrder(uncachedLookups.get("Lookup"))) {
+      if(!gate.Utils.getCoveringAnnotations(doc.getAnnotations(), lookup,
+          "Sentence").isEmpty()) {
+        expected.add(gate.Utils.start(lookup) + "-" + gate.Utils.end(lookup)
+            + lookup.getFeatures());
+      }
+    }
+    assertTrue("No lookups found", expected.size() > 0);
+    List<String> second = lookupList(doc.getAnnotations("second"));
+    assertTrue("Lookups missed", second.containsAll(expected));
+    assertTrue("Unexpected lookups", lookupList(uncachedLookups).containsAll(second));
+
+    Factory.deleteResource(doc);
+    Factory.deleteResource(tokeniser);
+    Factory.deleteResource(splitter);
+    Factory.deleteResource(morphologicalAnalyser);
+    Factory.deleteResource(uncached);
+    Factory.deleteResource(cached);
+  }
+
+  /**
+   * Tests that the flexible wrapper running a gazetteer finds the Lookups
+   * found by the flexible gazetteer
+   */
+  public void testFlexibleWrapper() throws Exception {
+    Document doc = Factory.newDocument(this.getClass().getResource("/tests/doc0.html"));
+
+    gate.creole.tokeniser.DefaultTokeniser tokeniser=
+        (gate.creole.tokeniser.DefaultTokeniser) Factory.createResource(
+        "gate.creole.tokeniser.DefaultTokeniser");
+    gate.creole.morph.Morph morphologicalAnalyser=
+        (gate.creole.morph.Morph) Factory.createResource(
+        "gate.creole.morph.Morph");
+    gate.creole.gazetteer.Gazetteer gazetteerInst =
+        (gate.creole.gazetteer.DefaultGazetteer) Factory.createResource(
+        "gate.creole.gazetteer.DefaultGazetteer");
+
+    List<String> testInputFeatures=new ArrayList<String>();
+    testInputFeatures.add("Token.root");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", testInputFeatures);
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("outputASName", "flexible");
+    FlexibleGazetteer flexGaz = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+
+    params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", testInputFeatures);
+    List<gate.LanguageAnalyser> analysers = new ArrayList<gate.LanguageAnalyser>();
+    analysers.add(gazetteerInst);
+    params.put("analysers", analysers);
+    params.put("outputASName", "wrapped");
+    FlexibleWrapper wrapper = (FlexibleWrapper) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleWrapper", params);
+
+    tokeniser.setDocument(doc);
+    tokeniser.execute();
+    morphologicalAnalyser.setDocument(doc);
+    morphologicalAnalyser.execute();
+    flexGaz.setDocument(doc);
+    flexGaz.execute();
+    wrapper.setDocument(doc);
+    wrapper.execute();
+
+    assertEquals(lookups(doc.getAnnotations("flexible")),
+        lookups(doc.getAnnotations("wrapped")));
+
+    Factory.deleteResource(doc);
+    Factory.deleteResource(tokeniser);
+    Factory.deleteResource(morphologicalAnalyser);
+    Factory.deleteResource(flexGaz);
+    Factory.deleteResource(wrapper);
+    Factory.deleteResource(gazetteerInst);
+  }
+
+  /**
+   * Tests that the flexible wrapper runs several analysers in turn over the
+   * rewritten text, each seeing the annotations of the ones before, and
+   * maps back the annotations of every set of the temporary document, or
+   * only those of the output types
+   */
+  public void testFlexibleWrapperPipeline() throws Exception {
+    Document doc = Factory.newDocument(this.getClass().getResource("/tests/doc0.html"));
+
+    gate.creole.tokeniser.DefaultTokeniser tokeniser=
+        (gate.creole.tokeniser.DefaultTokeniser) Factory.createResource(
+        "gate.creole.tokeniser.DefaultTokeniser");
+    gate.creole.morph.Morph morphologicalAnalyser=
+        (gate.creole.morph.Morph) Factory.createResource(
+        "gate.creole.morph.Morph");
+    gate.creole.gazetteer.Gazetteer gazetteerInst =
+        (gate.creole.gazetteer.DefaultGazetteer) Factory.createResource(
+        "gate.creole.gazetteer.DefaultGazetteer");
+
+    List<String> testInputFeatures=new ArrayList<String>();
+    testInputFeatures.add("Token.root");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", testInputFeatures);
+    params.put("gazetteerInst", gazetteerInst);
+    params.put("outputASName", "flexible");
+    FlexibleGazetteer flexGaz = (FlexibleGazetteer) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleGazetteer", params);
+
+    // the temporary document is tokenised, looked up into the "Gaz" set,
+    // and the Lookups are then moved from there into the "Moved" set
+    gate.creole.tokeniser.DefaultTokeniser wrappedTokeniser=
+        (gate.creole.tokeniser.DefaultTokeniser) Factory.createResource(
+        "gate.creole.tokeniser.DefaultTokeniser");
+    gate.creole.gazetteer.Gazetteer wrappedGazetteer =
+        (gate.creole.gazetteer.DefaultGazetteer) Factory.createResource(
+        "gate.creole.gazetteer.DefaultGazetteer");
+    wrappedGazetteer.setAnnotationSetName("Gaz");
+    gate.creole.annotransfer.AnnotationSetTransfer transfer =
+        (gate.creole.annotransfer.AnnotationSetTransfer) Factory.createResource(
+        "gate.creole.annotransfer.AnnotationSetTransfer");
+    transfer.setInputASName("Gaz");
+    transfer.setOutputASName("Moved");
+    transfer.setTextTagName("");
+    transfer.setAnnotationTypes(Collections.singletonList("Lookup"));
+    transfer.setCopyAnnotations(Boolean.FALSE);
+
+    params = Factory.newFeatureMap();
+    params.put("inputFeatureNames", testInputFeatures);
+    List<gate.LanguageAnalyser> analysers = new ArrayList<gate.LanguageAnalyser>();
+    analysers.add(wrappedTokeniser);
+    analysers.add(wrappedGazetteer);
+    analysers.add(transfer);
+    params.put("analysers", analysers);
+    params.put("outputASName", "wrapped");
+    FlexibleWrapper wrapper = (FlexibleWrapper) Factory.createResource(
+                          "gate.creole.gazetteer.FlexibleWrapper", params);
+
+    tokeniser.setDocument(doc);
+    tokeniser.execute();
+    morphologicalAnalyser.setDocument(doc);
+    morphologicalAnalyser.execute();
+    flexGaz.setDocument(doc);
+    flexGaz.execute();
+    wrapper.setDocument(doc);
+    wrapper.execute();
+
+    // the Lookups only reach the output through the set they were moved to
+    assertEquals(lookups(doc.getAnnotations("flexible")),
+        lookups(doc.getAnnotations("wrapped")));
+    // and the Tokens of the rewritten text are mapped back too
+    AnnotationSet wrappedTokens = doc.getAnnotations("wrapped").get("Token");
+    assertTrue("No tokens mapped back", wrappedTokens.size() > 0);
+    for(Annotation token : wrappedTokens) {
+      assertFalse("Token outside the input annotations",
+          gate.Utils.getCoveringAnnotations(doc.getAnnotations(), token,
+              "Token").isEmpty());
+    }
+
+    // only the Lookups, when asked for
+    wrapper.setOutputAnnotationTypes(Collections.singletonList("Lookup"));
+    wrapper.setOutputASName("lookupsOnly");
+    wrapper.execute();
+    assertEquals(lookups(doc.getAnnotations("flexible")),
+        lookups(doc.getAnnotations("lookupsOnly")));
+    assertEquals(Collections.singleton("Lookup"),
+        doc.getAnnotations("lookupsOnly").getAllTypes());
+
+    Factory.deleteResource(doc);
+    Factory.deleteResource(tokeniser);
+    Factory.deleteResource(morphologicalAnalyser);
+    Factory.deleteResource(flexGaz);
+    Factory.deleteResource(wrapper);
+    Factory.deleteResource(gazetteerInst);
+    Factory.deleteResource(wrappedTokeniser);
+    Factory.deleteResource(wrappedGazetteer);
+    Factory.deleteResource(transfer);
+  }
+
+  private static String lookups(AnnotationSet annotations) {
+    return lookupList(annotations).toString();
+  }
+
+  private static List<String> lookupList(AnnotationSet annotations) {
+    List<String> lookups = new ArrayList<String>();
+    for(Annotation annotation : gate.Utils.inDocumentOrder(annotations.get("Lookup"))) {
+      lookups.add(gate.Utils.start(annotation) + "-"
+          + gate.Utils.end(annotation) + annotation.getFeatures());
+    }
+    return lookups;
+  }
+
+  /** Tests which of the overlapping input annotations are kept */
+  public void testOverlapPolicy() throws Exception {
+    Document doc = Factory.newDocument("New York City Hall");
+    AnnotationSet tokens = doc.getAnnotations();
+    // two tokenisations of the same text, with different priorities
+    FeatureMap features = Factory.newFeatureMap();
+    features.put("priority", 1);
+    tokens.add(0L, 3L, "Token", features);
+    features = Factory.newFeatureMap();
+    features.put("priority", "3");
+    tokens.add(0L, 8L, "Token", features);
+    features = Factory.newFeatureMap();
+    features.put("priority", 2);
+    tokens.add(4L, 8L, "Token", features);
+    tokens.add(9L, 13L, "Token", Factory.newFeatureMap());
+    tokens.add(9L, 18L, "Token", Factory.newFeatureMap());
+    tokens.add(14L, 18L, "Token", Factory.newFeatureMap());
+
+    FlexibleGazetteer flexGaz = new FlexibleGazetteer();
+    List<Annotation> sorted = new ArrayList<Annotation>(tokens);
+    Collections.sort(sorted, new Comparator<Annotation>() {
+      @Override
+      public int compare(Annotation a1, Annotation a2) {
+        int result = gate.Utils.start(a1).compareTo(gate.Utils.start(a2));
+        return result != 0 ? result : gate.Utils.end(a1).compareTo(
+            gate.Utils.end(a2));
+      }
+    });
+
+    assertEquals("[0-3, 4-8, 9-13, 14-18]",
+        spans(flexGaz.removeOverlappingAnnotations(sorted)));
+    flexGaz.setOverlapPolicy(FlexGazOverlapPolicy.LONGEST);
+    assertEquals("[0-8, 9-18]",
+        spans(flexGaz.removeOverlappingAnnotations(sorted)));
+    flexGaz.setOverlapPolicy(FlexGazOverlapPolicy.SHORTEST);
+    assertEquals("[0-3, 4-8, 9-13, 14-18]",
+        spans(flexGaz.removeOverlappingAnnotations(sorted)));
+    flexGaz.setOverlapPolicy(FlexGazOverlapPolicy.PRIORITY);
+    flexGaz.setOverlapPriorityFeature("priority");
+    assertEquals("[0-8, 9-13, 14-18]",
+        spans(flexGaz.removeOverlappingAnnotations(sorted)));
+
+    Factory.deleteResource(doc);
+  }
+
+  private static String spans(List<Annotation> annotations) {
+    List<String> spans = new ArrayList<String>();
+    for(Annotation annotation : annotations) {
+      spans.add(gate.Utils.start(annotation) + "-"
+          + gate.Utils.end(annotation));
+    }
+    return spans.toString();
+  }
+
+  /**
+   * Rewrites a synthetic document of about 1 MB, checking the text and the
+   * offset mapping against a straightforward implementation, and times it.
+   */
+  public void testRewriteLargeDocument() throws Exception {
+    Random random = new Random(1);
+    StringBuilder content = new StringBuilder();
+    List<int[]> tokens = new ArrayList<int[]>();
+    List<String> values = new ArrayList<String>();
+    while(content.length() < 1000000) {
+      int start = content.length();
+      int length = 1 + random.nextInt(9);
+      for(int i = 0; i < length; i++) {
+        content.append((char)('a' + random.nextInt(26)));
+      }
+      tokens.add(new int[] {start, content.length()});
+      values.add(content.substring(start, start + Math.max(1, length - 2)));
+      content.append(random.nextInt(10) == 0 ? ", " : " ");
+    }
+    String text = content.toString();
+
+    long startTime = System.nanoTime();
+    FlexibleGazetteer.RewrittenText rewritten =
+        new FlexibleGazetteer.RewrittenText("Token.root", text.length(),
+            tokens.size());
+    for(int i = 0; i < tokens.size(); i++) {
+      rewritten.replace(text, tokens.get(i)[0], tokens.get(i)[1], values.get(i));
+    }
+    rewritten.finish(text);
+    long rewriteTime = System.nanoTime() - startTime;
+
+    // the same text built by replacing each token in a copy of the content
+    StringBuilder expected = new StringBuilder(text);
+    int deducted = 0;
+    for(int i = 0; i < tokens.size(); i++) {
+      int start = tokens.get(i)[0] - deducted;
+      int length = tokens.get(i)[1] - tokens.get(i)[0];
+      expected.replace(start, start + length, values.get(i));
+      deducted += length - values.get(i).length();
+    }
+    assertEquals(expected.toString(), rewritten.text.toString());
+
+    assertEquals(tokens.size(), rewritten.mappingTable.size());
+    deducted = 0;
+    for(int i = 0; i < tokens.size(); i++) {
+      int start = tokens.get(i)[0] - deducted;
+      int end = start + values.get(i).length();
+      assertEquals(tokens.get(i)[0], rewritten.mappingTable.getBestOriginalStart(start));
+      assertEquals(tokens.get(i)[1], rewritten.mappingTable.getBestOriginalEnd(end));
+      assertTrue(rewritten.mappingTable.isCovered(start));
+      assertTrue(rewritten.mappingTable.isCovered(end));
+      if(i + 1 < tokens.size() && tokens.get(i + 1)[0] - tokens.get(i)[1] > 1) {
+        // inside the ", " between two tokens
+        assertFalse(rewritten.mappingTable.isCovered(end + 1));
+      }
+      deducted += tokens.get(i)[1] - tokens.get(i)[0] - values.get(i).length();
+    }
+
+    if (DEBUG) {
+      System.out.println("Rewrote " + text.length() + " characters and "
+          + tokens.size() + " tokens in " + rewriteTime / 1000000 + " ms");
+    }
+  }
+
 } // TestFlexibleGazetteer
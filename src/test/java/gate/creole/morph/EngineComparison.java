@@ -0,0 +1,404 @@
+package gate.creole.morph;
+
+import gate.util.BomStrippingInputStreamReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * <p>
+ * Title: EngineComparison.java
+ * </p>
+ * <p>
+ * Description: Runs a reference morpher and a candidate engine side by side on
+ * the same words and categories, and records every word for which they give a
+ * different root, affix or rule index, together with the time each engine
+ * took. Any alternative engine must show no divergence against
+ * {@link Interpret} over the lexicons, the test words and a large number of
+ * random words before it is used.
+ * </p>
+ * <p>
+ * Comparing two running engines only shows that they agree: a change made to
+ * both, or to {@link Interpret} alone when it is the reference, goes
+ * unnoticed. Engines can therefore also be compared with analyses recorded
+ * once in a file, see {@link #compareExpected(URL)}.
+ * </p>
+ * <p>
+ * Run from the command line, with the test classes on the class path, with
+ * the rule file, the class of the candidate engine and any word lists (one
+ * word per line, or lexicon lines of the form <code>word ==&gt; root</code>):
+ * </p>
+ * 
+ * <pre>
+ * EngineComparison &lt;rules URL&gt; &lt;engine class&gt; [word list URL ...]
+ * </pre>
+ */
+public class EngineComparison {
+
+	/** The categories words are compared with by default */
+	public static final String[] CATEGORIES = { "*", "VB", "VBD", "VBG",
+			"NN", "NNS", "JJ" };
+
+	/** Endings most rules are about, used to build adversarial words */
+	private static final String[] SUFFIXES = { "s", "es", "ies", "ses",
+			"ches", "shes", "xes", "ed", "ied", "eed", "ing", "ying", "'s",
+			"oes", "ves", "men", "ae", "i", "a", "ata" };
+
+	/** Characters random words are made of */
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz"
+			+ "aeiouesd-'.0ABESDIG\u00e9\u00fc\u0436";
+
+	/** A word on which the two engines disagree */
+	public static class Divergence {
+		private final String word, category;
+
+		private final String expectedRoot, expectedAffix;
+
+		private final int expectedRule;
+
+		private final String actualRoot, actualAffix;
+
+		private final int actualRule;
+
+		Divergence(String word, String category, String expectedRoot,
+				String expectedAffix, int expectedRule, String actualRoot,
+				String actualAffix, int actualRule) {
+			this.word = word;
+			this.category = category;
+			this.expectedRoot = expectedRoot;
+			this.expectedAffix = expectedAffix;
+			this.expectedRule = expectedRule;
+			this.actualRoot = actualRoot;
+			this.actualAffix = actualAffix;
+			this.actualRule = actualRule;
+		}
+
+		public String getWord() {
+			return word;
+		}
+
+		public String getCategory() {
+			return category;
+		}
+
+		@Override
+		public String toString() {
+			return word + "/" + category + ": expected " + expectedRoot + "+"
+					+ expectedAffix + " (rule " + expectedRule + ") but was "
+					+ actualRoot + "+" + actualAffix + " (rule " + actualRule
+					+ ")";
+		}
+	}
+
+	private final Interpret reference;
+
+	private final Interpret candidate;
+
+	/** The largest number of divergences kept */
+	private int maxDivergences = 100;
+
+	private final List<Divergence> divergences = new ArrayList<Divergence>();
+
+	private long divergenceCount = 0;
+
+	private long comparisons = 0;
+
+	private long referenceNanos = 0;
+
+	private long candidateNanos = 0;
+
+	/**
+	 * @param reference
+	 *            the engine giving the expected results
+	 * @param candidate
+	 *            the engine being checked
+	 */
+	public EngineComparison(Interpret reference, Interpret candidate) {
+		this.reference = reference;
+		this.candidate = candidate;
+	}
+
+	/**
+	 * Creates a comparison of the engine with recorded analyses only
+	 * 
+	 * @param candidate
+	 *            the engine being checked
+	 */
+	public EngineComparison(Interpret candidate) {
+		this(null, candidate);
+	}
+
+	/**
+	 * Sets the largest number of divergences kept for the report; all of them
+	 * are counted
+	 */
+	public void setMaxDivergences(int maxDivergences) {
+		this.maxDivergences = maxDivergences;
+	}
+
+	/**
+	 * Compares the engines on all the words with each of the categories. Each
+	 * engine analyses all the words in turn, so that the times are those of
+	 * runs over the whole list.
+	 */
+	public void compare(List<String> words, String... categories) {
+		if (reference == null)
+			throw new IllegalStateException("No reference engine to compare with");
+		int size = words.size();
+		String[] roots = new String[size];
+		String[] affixes = new String[size];
+		int[] rules = new int[size];
+		for (String category : categories) {
+			long start = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				roots[i] = reference.runMorpher(words.get(i), category);
+				affixes[i] = reference.getAffix();
+				rules[i] = reference.getPatternIndex();
+			}
+			referenceNanos += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			String[] candidateRoots = new String[size];
+			String[] candidateAffixes = new String[size];
+			int[] candidateRules = new int[size];
+			for (int i = 0; i < size; i++) {
+				candidateRoots[i] = candidate.runMorpher(words.get(i), category);
+				candidateAffixes[i] = candidate.getAffix();
+				candidateRules[i] = candidate.getPatternIndex();
+			}
+			candidateNanos += System.nanoTime() - start;
+
+			for (int i = 0; i < size; i++) {
+				check(words.get(i), category, roots[i], affixes[i], rules[i],
+						candidateRoots[i], candidateAffixes[i], candidateRules[i]);
+			}
+		}
+	}
+
+	/**
+	 * Compares the candidate engine with the analyses recorded in a file
+	 * written by {@link #writeExpected(Interpret, List, Writer, String...)}.
+	 * Each line gives, tab separated, a word, a category, the root and, if a
+	 * rule applied, the affix and the index of the rule.
+	 */
+	public void compareExpected(URL expected) throws IOException {
+		BufferedReader in = new BomStrippingInputStreamReader(
+				expected.openStream(), "UTF-8");
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				long start = System.nanoTime();
+				String root = candidate.runMorpher(fields[0], fields[1]);
+				candidateNanos += System.nanoTime() - start;
+				if (fields.length > 3) {
+					check(fields[0], fields[1], fields[2], fields[3],
+							Integer.parseInt(fields[4]), root,
+							candidate.getAffix(), candidate.getPatternIndex());
+				} else {
+					check(fields[0], fields[1], fields[2], null, -1, root,
+							candidate.getAffix(), candidate.getPatternIndex());
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the analyses the engine gives of the words with each of the
+	 * categories, in the form read by {@link #compareExpected(URL)}
+	 */
+	public static void writeExpected(Interpret engine, List<String> words,
+			Writer out, String... categories) throws IOException {
+		for (String word : words) {
+			for (String category : categories) {
+				String root = engine.runMorpher(word, category);
+				out.write(word + "\t" + category + "\t" + root);
+				if (engine.getPatternIndex() >= 0) {
+					out.write("\t" + engine.getAffix() + "\t"
+							+ engine.getPatternIndex());
+				}
+				out.write("\n");
+			}
+		}
+	}
+
+	/**
+	 * Counts one comparison, keeping it if the analyses differ
+	 */
+	private void check(String word, String category, String root,
+			String affix, int rule, String candidateRoot,
+			String candidateAffix, int candidateRule) {
+		comparisons++;
+		if (!Objects.equals(root, candidateRoot)
+				|| !Objects.equals(affix, candidateAffix)
+				|| rule != candidateRule) {
+			divergenceCount++;
+			if (divergences.size() < maxDivergences) {
+				divergences.add(new Divergence(word, category, root, affix,
+						rule, candidateRoot, candidateAffix, candidateRule));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of word and category pairs compared
+	 */
+	public long getComparisons() {
+		return comparisons;
+	}
+
+	/**
+	 * Returns the number of word and category pairs the engines disagree on
+	 */
+	public long getDivergenceCount() {
+		return divergenceCount;
+	}
+
+	/**
+	 * Returns the first divergences found
+	 */
+	public List<Divergence> getDivergences() {
+		return divergences;
+	}
+
+	/**
+	 * Returns the analyses per second of the reference engine
+	 */
+	public double getReferenceThroughput() {
+		return referenceNanos == 0 ? 0 : comparisons * 1e9 / referenceNanos;
+	}
+
+	/**
+	 * Returns the analyses per second of the candidate engine
+	 */
+	public double getCandidateThroughput() {
+		return candidateNanos == 0 ? 0 : comparisons * 1e9 / candidateNanos;
+	}
+
+	/**
+	 * Returns a summary of the comparison and the divergences kept
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append(reference == null ? "expected analyses"
+				: reference.getClass().getSimpleName()).append(" vs ")
+				.append(candidate.getClass().getSimpleName()).append(": ")
+				.append(comparisons).append(" analyses, ")
+				.append(divergenceCount).append(" divergences\n");
+		if (reference == null) {
+			report.append(String.format("throughput: %.0f/s%n",
+					getCandidateThroughput()));
+		} else {
+			report.append(String.format("throughput: %.0f/s vs %.0f/s%n",
+					getReferenceThroughput(), getCandidateThroughput()));
+		}
+		for (Divergence divergence : divergences) {
+			report.append(divergence).append('\n');
+		}
+		if (divergenceCount > divergences.size()) {
+			report.append("...\n");
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Reads the words of a word list. Lexicon lines of the form
+	 * <code>word ==&gt; root</code> give both words.
+	 */
+	public static List<String> readWords(URL wordList) throws IOException {
+		List<String> words = new ArrayList<String>();
+		BufferedReader in = new BomStrippingInputStreamReader(
+				wordList.openStream(), "UTF-8");
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				for (String word : line.split("==>")) {
+					word = word.trim();
+					if (word.length() > 0)
+						words.add(word);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return words;
+	}
+
+	/**
+	 * Returns random words, half of them ending in one of the endings the
+	 * rules are about, together with a few degenerate ones (empty, very long,
+	 * repeated endings).
+	 */
+	public static List<String> randomWords(int count, long seed) {
+		Random random = new Random(seed);
+		List<String> words = new ArrayList<String>(count + 4);
+		for (int i = 0; i < count; i++) {
+			StringBuilder word = new StringBuilder();
+			int length = 1 + random.nextInt(12);
+			for (int j = 0; j < length; j++) {
+				word.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			if (random.nextBoolean()) {
+				word.append(SUFFIXES[random.nextInt(SUFFIXES.length)]);
+			}
+			words.add(word.toString());
+		}
+		words.add("");
+		words.add("sssssssssssssssssssssssssssssss");
+		words.add("ingingingingingedededesesesies");
+		StringBuilder longWord = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			longWord.append("pre");
+		}
+		words.add(longWord.append("ed").toString());
+		return words;
+	}
+
+	/**
+	 * Compares {@link Interpret} with the engine of the given class
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage : EngineComparison <rules URL> "
+					+ "<engine class> [word list URL ...]");
+			System.exit(-1);
+		}
+		URL rules = new URL(args[0]);
+		Interpret reference = new Interpret();
+		reference.init(rules);
+		Interpret candidate = (Interpret) Class.forName(args[1])
+				.getDeclaredConstructor().newInstance();
+		candidate.init(rules);
+
+		Collection<String> words = new ArrayList<String>();
+		for (int i = 2; i < args.length; i++) {
+			words.addAll(readWords(new File(args[i]).exists() ? new File(
+					args[i]).toURI().toURL() : new URL(args[i])));
+		}
+		for (String lexicon : new String[] { "verb.dat", "noun.dat",
+				"adj.dat", "adv.dat" }) {
+			URL url = new URL(rules, lexicon);
+			try {
+				words.addAll(readWords(url));
+			} catch (IOException e) {
+				// no lexicon next to the rules
+			}
+		}
+		words.addAll(randomWords(100000, 42));
+
+		EngineComparison comparison = new EngineComparison(reference, candidate);
+		comparison.compare(new ArrayList<String>(words), CATEGORIES);
+		System.out.print(comparison.getReport());
+		System.exit(comparison.getDivergenceCount() == 0 ? 0 : 1);
+	}
+}
@@ -3,16 +3,29 @@ package gate.creole.morph;
 import gate.Annotation;
 import gate.Document;
 import gate.Factory;
+import gate.FeatureMap;
 import gate.creole.ANNIEConstants;
 import gate.creole.ExecutionException;
+import gate.creole.ResourceReference;
 import gate.creole.tokeniser.DefaultTokeniser;
 import gate.test.GATEPluginTestCase;
 import gate.util.OffsetComparator;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -186,6 +199,714 @@ public class TestMorph extends GATEPluginTestCase {
 		}
 	}
 
+	/**
+	 * Test that profiling records each rule of the file with what it added
+	 * to the automaton, leaves the results unchanged, and that the report
+	 * lists every rule, slowest first
+	 */
+	public void testRuleProfile() throws Exception {
+		URL rules = this.getClass().getResource("/tests/morph/shadowed.rul");
+		Interpret interpret = new Interpret();
+		interpret.setProfileRules(true);
+		interpret.init(rules);
+		List<RuleProfile> profiles = interpret.getRuleProfiles();
+		assertEquals(5, profiles.size());
+		int[] lines = { 5, 6, 7, 8, 9 };
+		int transitions = 0;
+		for (int i = 0; i < profiles.size(); i++) {
+			RuleProfile profile = profiles.get(i);
+			assertEquals(lines[i], profile.getLine());
+			assertEquals(1, profile.getAlternatives());
+			assertTrue(profile.getTotalNanos() >= 0);
+			transitions += profile.getTransitionsAdded();
+		}
+		assertTrue(profiles.get(0).getText().contains("\"went\""));
+		// the first rule builds the path for "went", one state per letter
+		assertEquals(4, profiles.get(0).getStatesAdded());
+		// the later "went" rules only add a final state to that path
+		assertEquals(0, profiles.get(2).getTransitionsAdded());
+		assertEquals(interpret.measureAutomaton()[1], transitions);
+
+		Interpret plain = new Interpret();
+		plain.init(rules);
+		for (String word : new String[] { "went", "cats", "dogs", "1990s" }) {
+			assertEquals(word, plain.runMorpher(word, "noun"),
+					interpret.runMorpher(word, "noun"));
+		}
+
+		StringWriter report = new StringWriter();
+		RuleProfile.writeReport(profiles, report);
+		String[] reportLines = report.toString().split("\n");
+		assertEquals(6, reportLines.length);
+		assertTrue(reportLines[0].startsWith("line\ttotal us\t"));
+		long previous = Long.MAX_VALUE;
+		for (int i = 1; i < reportLines.length; i++) {
+			String[] columns = reportLines[i].split("\t");
+			assertEquals(9, columns.length);
+			long total = Long.parseLong(columns[1]);
+			assertTrue("the slowest rule comes first", total <= previous);
+			previous = total;
+		}
+	}
+
+	/**
+	 * Test that the PR writes the profile of its rule file to the report file
+	 */
+	public void testRuleProfileFile() throws Exception {
+		URL rules = this.getClass().getResource("/tests/morph/shadowed.rul");
+		File file = File.createTempFile("profile", ".txt");
+		try {
+			FeatureMap params = Factory.newFeatureMap();
+			params.put("rulesFile", new ResourceReference(rules));
+			params.put("ruleProfileFile", file.toURI().toURL());
+			// a shared model compiled by another PR would not be profiled
+			params.put("shareBaseModel", Boolean.FALSE);
+			Morph morph = (Morph) Factory.createResource(
+					"gate.creole.morph.Morph", params);
+			Factory.deleteResource(morph);
+			List<String> written = Files.readAllLines(file.toPath(),
+					StandardCharsets.UTF_8);
+			assertEquals(7, written.size());
+			assertTrue(written.get(0).startsWith("# "));
+			assertTrue(written.get(0).endsWith("shadowed.rul"));
+			assertTrue(written.get(1).startsWith("line\ttotal us\t"));
+			List<String> ruleLines = new ArrayList<String>();
+			for (String line : written.subList(2, written.size())) {
+				ruleLines.add(line.substring(0, line.indexOf('\t')));
+			}
+			Collections.sort(ruleLines);
+			assertEquals(java.util.Arrays.asList("5", "6", "7", "8", "9"), ruleLines);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Creates a document of the given words separated by spaces, with a
+	 * Token annotation for each word
+	 */
+	private static Document newTokenDocument(String... words) throws Exception {
+		StringBuilder content = new StringBuilder();
+		for (String word : words) {
+			if (content.length() > 0)
+				content.append(' ');
+			content.append(word);
+		}
+		Document document = Factory.newDocument(content.toString());
+		long offset = 0;
+		for (String word : words) {
+			FeatureMap features = Factory.newFeatureMap();
+			features.put(ANNIEConstants.TOKEN_STRING_FEATURE_NAME, word);
+			document.getAnnotations().add(offset, offset + word.length(),
+					ANNIEConstants.TOKEN_ANNOTATION_TYPE, features);
+			offset += word.length() + 1;
+		}
+		return document;
+	}
+
+	/**
+	 * Returns the given feature of the tokens of the document, in document
+	 * order
+	 */
+	private static List<Object> tokenFeatures(Document document, String feature) {
+		List<Annotation> tokens = new ArrayList<Annotation>(document
+				.getAnnotations().get(ANNIEConstants.TOKEN_ANNOTATION_TYPE));
+		Collections.sort(tokens, new OffsetComparator());
+		List<Object> values = new ArrayList<Object>();
+		for (Annotation token : tokens) {
+			values.add(token.getFeatures().get(feature));
+		}
+		return values;
+	}
+
+	/**
+	 * Test that the tokens no rule can change are not analysed, keep their
+	 * string as root, and are counted, and that the filter can be turned off
+	 */
+	public void testSkipTokens() throws Exception {
+		String[] words = { "cats", "1990s", "Dogs", "caf\u00e9s" };
+		String[] kinds = { "word", "number", "word", "word" };
+		String[] orths = { "lowercase", null, "upperInitial", "lowercase" };
+		Document document = newTokenDocument(words);
+		List<Annotation> tokens = new ArrayList<Annotation>(document
+				.getAnnotations().get(ANNIEConstants.TOKEN_ANNOTATION_TYPE));
+		Collections.sort(tokens, new OffsetComparator());
+		for (int i = 0; i < tokens.size(); i++) {
+			tokens.get(i).getFeatures().put(ANNIEConstants.TOKEN_KIND_FEATURE_NAME,
+					kinds[i]);
+			if (orths[i] != null)
+				tokens.get(i).getFeatures().put(
+						ANNIEConstants.TOKEN_ORTH_FEATURE_NAME, orths[i]);
+		}
+		try {
+			morpher.setDocument(document);
+			morpher.setConsiderPOSTag(Boolean.FALSE);
+			morpher.setSkipTokenKinds(Collections.singletonList("number"));
+			morpher.setSkipTokenOrths(Collections.singletonList("upperInitial"));
+			morpher.setSkipUnanalysableTokens(Boolean.TRUE);
+			morpher.resetSkipCounters();
+			morpher.execute();
+			assertEquals(java.util.Arrays.asList("cat", "1990s", "dogs",
+					"caf\u00e9s"), tokenFeatures(document, "root"));
+			assertEquals(java.util.Arrays.asList("s", null, null, null),
+					tokenFeatures(document, "affix"));
+			assertEquals(1, morpher.getTokensSkippedByKind());
+			assertEquals(1, morpher.getTokensSkippedByOrth());
+			assertEquals(1, morpher.getTokensSkippedByCharacters());
+			assertEquals(1, morpher.getTokensAnalysed());
+
+			// no rule uses the character, so analysing the token gives the
+			// same result
+			morpher.setSkipUnanalysableTokens(Boolean.FALSE);
+			morpher.resetSkipCounters();
+			morpher.execute();
+			assertEquals(java.util.Arrays.asList("cat", "1990s", "dogs",
+					"caf\u00e9s"), tokenFeatures(document, "root"));
+			assertEquals(0, morpher.getTokensSkippedByCharacters());
+			assertEquals(2, morpher.getTokensAnalysed());
+
+			// without any filter every token is analysed as it used to be
+			morpher.setSkipTokenKinds(null);
+			morpher.setSkipTokenOrths(null);
+			morpher.resetSkipCounters();
+			morpher.execute();
+			assertEquals(java.util.Arrays.asList("cat", "1990", "dog",
+					"caf\u00e9s"), tokenFeatures(document, "root"));
+			assertEquals(java.util.Arrays.asList("s", "s", "s", null),
+					tokenFeatures(document, "affix"));
+			assertEquals(0, morpher.getTokensSkippedByKind());
+			assertEquals(0, morpher.getTokensSkippedByOrth());
+			assertEquals(4, morpher.getTokensAnalysed());
+		} finally {
+			morpher.setSkipTokenKinds(null);
+			morpher.setSkipTokenOrths(null);
+			morpher.setSkipUnanalysableTokens(Boolean.FALSE);
+			Factory.deleteResource(document);
+		}
+	}
+
+	/**
+	 * Test that each kind of rule action is decoded from its function call
+	 * and gives the root and affix the rule asks for
+	 */
+	public void testMorphActionCompile() throws Exception {
+		MorphAction action = MorphAction.compile("stem(2,\"e\",\"ed\")");
+		assertTrue(action instanceof MorphAction.Stem);
+		assertEquals("move", action.getRoot("moved"));
+		assertEquals("ed", action.getAffix("moved"));
+		action = MorphAction.compile("stem(1,\"\",\"s\")");
+		assertEquals("cat", action.getRoot("cats"));
+		assertEquals("s", action.getAffix("cats"));
+
+		action = MorphAction.compile("semi_reg_stem(0,\"e\")");
+		assertTrue(action instanceof MorphAction.SemiRegularStem);
+		assertEquals("ache", action.getRoot("aches"));
+		assertEquals("s", action.getAffix("aches"));
+		assertEquals("ache", action.getRoot("ached"));
+		assertEquals("ed", action.getAffix("ached"));
+		assertEquals("ache", action.getRoot("aching"));
+		assertEquals("ing", action.getAffix("aching"));
+		action = MorphAction.compile("semi_reg_stem(1,\"\")");
+		assertEquals("stop", action.getRoot("stopped"));
+		assertEquals("STOP", action.getRoot("STOPPING"));
+		assertEquals("ing", action.getAffix("STOPPING"));
+
+		action = MorphAction.compile("irreg_stem(\"be\",\"ing\")");
+		assertTrue(action instanceof MorphAction.IrregularStem);
+		assertEquals("be", action.getRoot("being"));
+		assertEquals("ing", action.getAffix("being"));
+
+		action = MorphAction.compile("null_stem()");
+		assertTrue(action instanceof MorphAction.NullStem);
+		assertEquals("canvas", action.getRoot("canvas"));
+		assertEquals(MorphAction.NO_AFFIX, action.getAffix("canvas"));
+
+		assertNull(MorphAction.compile("unknown_stem(1)"));
+	}
+
+	/**
+	 * Test that characters no set or literal tells apart share a class, and
+	 * that characters told apart by any of them do not
+	 */
+	public void testEquivalenceClasses() throws Exception {
+		EquivalenceClasses classes = new EquivalenceClasses();
+		classes.split("abcdefghijklmnopqrstuvwxyz");
+		classes.split("aeiou");
+		classes.split("s");
+		classes.compact();
+
+		// unused characters, consonants, vowels and s
+		assertEquals(4, classes.size());
+		assertEquals(0, classes.classOf('A'));
+		assertEquals(0, classes.classOf('\u0430'));
+		assertEquals(classes.classOf('b'), classes.classOf('z'));
+		assertEquals(classes.classOf('a'), classes.classOf('u'));
+		assertFalse(classes.classOf('a') == classes.classOf('b'));
+		assertFalse(classes.classOf('s') == classes.classOf('b'));
+		assertFalse(classes.classOf('s') == classes.classOf('a'));
+		assertFalse(classes.classOf('s') == 0);
+
+		assertEquals(3, classes.translateSet("abcdefghijklmnopqrstuvwxyz")
+				.length());
+		assertEquals(classes.translate("bat"), classes.translate("zep"));
+		assertFalse(classes.translate("bat").equals(classes.translate("bas")));
+	}
+
+	/**
+	 * Test that a loop over a character set is compiled into a single edge
+	 * per class rather than one per character, and check the size of the
+	 * compiled models
+	 */
+	public void testEquivalenceClassEdges() throws Exception {
+		// "x" then a loop over 15 vowels, which all fall into one class: one
+		// edge for "x", one into the loop and the loop itself
+		assertEquals(3, countTransitions("/tests/morph/vowel-loop.rul"));
+		Interpret interpret = new Interpret();
+		interpret.init(this.getClass().getResource("/tests/morph/vowel-loop.rul"));
+		assertEquals("xa\u044f", interpret.runMorpher("xa\u044f", "*"));
+
+		// a 60 letter Cyrillic and Latin set took 4202 edges character by
+		// character
+		assertEquals(119, countTransitions("/tests/morph/cyrillic.rul"));
+		// the English rules name almost every letter literally; they took
+		// 7401 edges character by character
+		assertEquals(6555, countTransitions("/resources/morph/default.rul"));
+	}
+
+	/**
+	 * Compiles the rule file with the default engine and returns the number
+	 * of transitions of its automaton
+	 */
+	private int countTransitions(String rules) throws Exception {
+		Interpret interpret = new Interpret();
+		interpret.init(this.getClass().getResource(rules));
+		int transitions = countTransitions(interpret.getInitialState());
+		for (List<Interpret.CharClass> states : interpret.fsms) {
+			for (Interpret.CharClass state : states) {
+				transitions += countTransitions(state.st);
+			}
+		}
+		return transitions;
+	}
+
+	private static int countTransitions(FSMState state) {
+		CharMap map = state.getTransitionFunction();
+		return (map.getItemsKeys() == null ? 0 : map.getItemsKeys().length)
+				+ (map.getAdjitemsKeys() == null ? 0 : map.getAdjitemsKeys().length);
+	}
+
+	/**
+	 * Test that the suffix-first engine finds the same roots and affixes as
+	 * the default one
+	 */
+	public void testReverseMatching() throws Exception {
+		FeatureMap params = Factory.newFeatureMap();
+		params.put("reverseMatching", Boolean.TRUE);
+		Morph reverseMorpher = (Morph) Factory.createResource(
+				"gate.creole.morph.Morph", params);
+		try {
+			for (String resource : new String[] { "/tests/morph/verbTest.dat",
+					"/tests/morph/nounTest.dat" }) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						this.getClass().getResourceAsStream(resource), "UTF-8"));
+				try {
+					String word;
+					while ((word = in.readLine()) != null) {
+						word = word.trim();
+						for (String category : new String[] { "VB", "NN", "*" }) {
+							assertEquals(word + "/" + category,
+									morpher.findBaseWord(word, category),
+									reverseMorpher.findBaseWord(word, category));
+							assertEquals(word + "/" + category,
+									morpher.findAffix(word, category),
+									reverseMorpher.findAffix(word, category));
+						}
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			Factory.deleteResource(reverseMorpher);
+		}
+	}
+
+	/**
+	 * Test that rules which can never fire are found, and that leaving them
+	 * out of the model does not change the results
+	 */
+	public void testShadowedRules() throws Exception {
+		for (Interpret interpret : new Interpret[] { new Interpret(),
+				new ReverseInterpret() }) {
+			interpret.setPruneShadowedRules(true);
+			interpret.init(this.getClass().getResource("/tests/morph/shadowed.rul"));
+
+			List<String> shadowed = interpret.getShadowedRules();
+			assertEquals(2, shadowed.size());
+			assertTrue(shadowed.get(0).startsWith("line 7 "));
+			assertTrue(shadowed.get(0).endsWith("duplicates line 5"));
+			assertTrue(shadowed.get(1).startsWith("line 8 "));
+			assertTrue(shadowed.get(1).endsWith("is shadowed by line 6"));
+
+			assertEquals("go", interpret.runMorpher("went", "VB"));
+			assertEquals("went", interpret.runMorpher("went", "NN"));
+			assertEquals("cat", interpret.runMorpher("cats", "NN"));
+			assertEquals("s", interpret.getAffix());
+		}
+	}
+
+	/**
+	 * Test that pruning a rule with a prefix does not break the checks of
+	 * the rules after it when the suffix-first engine is used, as that
+	 * engine offers every rule sharing a suffix as a candidate
+	 */
+	public void testShadowedRulesReverse() throws Exception {
+		FeatureMap params = Factory.newFeatureMap();
+		params.put("reverseMatching", Boolean.TRUE);
+		params.put("pruneShadowedRules", Boolean.TRUE);
+		params.put("rulesFile", new ResourceReference(this.getClass()
+				.getResource("/tests/morph/duplicate-suffix.rul")));
+		Morph reverseMorpher = (Morph) Factory.createResource(
+				"gate.creole.morph.Morph", params);
+		try {
+			assertEquals("abcat", reverseMorpher.findBaseWord("abcats", "NN"));
+			assertEquals("s", reverseMorpher.findAffix("abcats", "NN"));
+			assertEquals("c", reverseMorpher.findBaseWord("cs", "NN"));
+			assertEquals(1, reverseMorpher.findAllAnalyses("abdogs").size());
+		} finally {
+			Factory.deleteResource(reverseMorpher);
+		}
+	}
+
+	/**
+	 * Test that overlay rules take priority over a shared base model and can
+	 * use its variables
+	 */
+	public void testOverlayRules() throws Exception {
+		FeatureMap params = Factory.newFeatureMap();
+		params.put("shareBaseModel", Boolean.TRUE);
+		params.put("overlayRulesFiles", Collections.singletonList(this
+				.getClass().getResource("/tests/morph/overlay.rul")));
+		Morph overlayMorpher = (Morph) Factory.createResource(
+				"gate.creole.morph.Morph", params);
+		params.remove("overlayRulesFiles");
+		Morph sharedMorpher = (Morph) Factory.createResource(
+				"gate.creole.morph.Morph", params);
+		try {
+			assertEquals("wend", overlayMorpher.findBaseWord("went", "VB"));
+			assertEquals("foobar", overlayMorpher.findBaseWord("foobarz", "NN"));
+			assertEquals("z", overlayMorpher.findAffix("foobarz", "NN"));
+			assertEquals("walk", overlayMorpher.findBaseWord("walked", "VB"));
+
+			assertEquals("go", sharedMorpher.findBaseWord("went", "VB"));
+			assertEquals("foobarz", sharedMorpher.findBaseWord("foobarz", "NN"));
+		} finally {
+			Factory.deleteResource(overlayMorpher);
+			Factory.deleteResource(sharedMorpher);
+		}
+	}
+
+	/**
+	 * Test that all the analyses of a word are returned in rule order, the
+	 * first one for a category being what findBaseWord returns
+	 */
+	public void testAllAnalyses() throws Exception {
+		List<MorphAnalysis> analyses = morpher.findAllAnalyses("lives");
+		assertEquals(2, analyses.size());
+		assertEquals("life", analyses.get(0).getRoot());
+		assertEquals("noun", analyses.get(0).getCategory());
+		assertEquals("live", analyses.get(1).getRoot());
+		assertEquals("*", analyses.get(1).getCategory());
+		assertTrue(analyses.get(0).getRuleIndex() < analyses.get(1)
+				.getRuleIndex());
+
+		assertEquals("life", morpher.findBaseWord("lives", "NN"));
+		assertEquals("live", morpher.findBaseWord("lives", "VB"));
+	}
+
+	/**
+	 * Test that only the tokens within the span annotations are analysed
+	 */
+	public void testSpanAnnotationType() throws Exception {
+		Document document = Factory.newDocument("cats walked dogs ran");
+		String[] words = { "cats", "walked", "dogs", "ran" };
+		long offset = 0;
+		for (String word : words) {
+			FeatureMap features = Factory.newFeatureMap();
+			features.put(ANNIEConstants.TOKEN_STRING_FEATURE_NAME, word);
+			document.getAnnotations().add(offset, offset + word.length(),
+					ANNIEConstants.TOKEN_ANNOTATION_TYPE, features);
+			offset += word.length() + 1;
+		}
+		document.getAnnotations("Spans").add(5L, 16L, "Span",
+				Factory.newFeatureMap());
+		try {
+			morpher.setDocument(document);
+			morpher.setConsiderPOSTag(Boolean.FALSE);
+			morpher.setSpanAnnotationType("Span");
+			morpher.setSpanAnnotationSetName("Spans");
+			morpher.execute();
+
+			List<Annotation> tokens = new ArrayList<Annotation>(document
+					.getAnnotations().get(ANNIEConstants.TOKEN_ANNOTATION_TYPE));
+			Collections.sort(tokens, new OffsetComparator());
+			assertNull(tokens.get(0).getFeatures().get("root"));
+			assertEquals("walk", tokens.get(1).getFeatures().get("root"));
+			assertEquals("dog", tokens.get(2).getFeatures().get("root"));
+			assertNull(tokens.get(3).getFeatures().get("root"));
+		} finally {
+			morpher.setSpanAnnotationType(null);
+			morpher.setSpanAnnotationSetName(null);
+			Factory.deleteResource(document);
+		}
+	}
+
+	/**
+	 * Test that the suffix-first engine gives the same root, affix and rule
+	 * as the default one on the lexicons and on random words
+	 */
+	public void testEngineComparison() throws Exception {
+		URL rules = this.getClass().getResource("/resources/morph/default.rul");
+		Interpret reference = new Interpret();
+		reference.init(rules);
+		Interpret candidate = new ReverseInterpret();
+		candidate.init(rules);
+
+		List<String> words = new ArrayList<String>();
+		for (String lexicon : new String[] { "verb.dat", "noun.dat", "adj.dat" }) {
+			words.addAll(EngineComparison.readWords(new URL(rules, lexicon)));
+		}
+		words.addAll(EngineComparison.randomWords(20000, 42));
+
+		EngineComparison comparison = new EngineComparison(reference, candidate);
+		comparison.compare(words, EngineComparison.CATEGORIES);
+		assertEquals(comparison.getReport(), 0, comparison.getDivergenceCount());
+	}
+
+	/**
+	 * Test both engines against analyses recorded with the original engine,
+	 * which catch changes made to the default engine as well
+	 */
+	public void testExpectedAnalyses() throws Exception {
+		URL rules = this.getClass().getResource("/resources/morph/default.rul");
+		URL expected = this.getClass().getResource(
+				"/tests/morph/expectedAnalyses.txt");
+		for (Interpret engine : new Interpret[] { new Interpret(),
+				new ReverseInterpret() }) {
+			engine.init(rules);
+			EngineComparison comparison = new EngineComparison(engine);
+			comparison.compareExpected(expected);
+			assertEquals(4011, comparison.getComparisons());
+			assertEquals(comparison.getReport(), 0,
+					comparison.getDivergenceCount());
+		}
+	}
+
+	/**
+	 * Test that the cache drops the least recently used analyses once full
+	 */
+	public void testCacheEviction() throws Exception {
+		MorphCache cache = new MorphCache(2);
+		cache.put("cats", "NN", "cat", "s");
+		cache.put("dogs", "NN", "dog", "s");
+		// the category is part of the key
+		assertNull(cache.get("cats", "VB"));
+		assertEquals("cat", cache.get("cats", "NN")[0]);
+		cache.put("walked", "VB", "walk", "ed");
+		assertEquals(2, cache.size());
+		assertNull(cache.get("dogs", "NN"));
+		assertEquals("cat", cache.get("cats", "NN")[0]);
+		assertEquals("ed", cache.get("walked", "VB")[1]);
+	}
+
+	/**
+	 * Test that a warm up analyses the words of its list into the cache, and
+	 * that a snapshot of the cache warms up another one with the same words
+	 */
+	public void testCacheWarmUpAndSnapshot() throws Exception {
+		Interpret interpret = new Interpret();
+		interpret.init(this.getClass().getResource("/resources/morph/default.rul"));
+
+		File wordList = File.createTempFile("morph-words", ".txt");
+		File snapshot = File.createTempFile("morph-snapshot", ".txt");
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(wordList),
+					"UTF-8");
+			try {
+				out.write("Cats\tNN\nwalked\tVB\n\nlives\n");
+			} finally {
+				out.close();
+			}
+
+			MorphCache cache = new MorphCache(10);
+			cache.warmUp(wordList.toURI().toURL(), interpret, true);
+			assertTrue(cache.awaitWarmUp(30, TimeUnit.SECONDS));
+			assertEquals(3, cache.size());
+			assertEquals("cat", cache.get("cats", "NN")[0]);
+			assertEquals("s", cache.get("cats", "NN")[1]);
+			assertEquals("walk", cache.get("walked", "VB")[0]);
+			assertEquals("life", cache.get("lives", "*")[0]);
+
+			cache.save(snapshot);
+			MorphCache restored = new MorphCache(10);
+			restored.warmUp(snapshot.toURI().toURL(), interpret, false);
+			assertTrue(restored.awaitWarmUp(30, TimeUnit.SECONDS));
+			assertEquals(3, restored.size());
+			for (String[] entry : new String[][] { { "cats", "NN" },
+					{ "walked", "VB" }, { "lives", "*" } }) {
+				assertEquals(cache.get(entry[0], entry[1])[0], restored.get(
+						entry[0], entry[1])[0]);
+				assertEquals(cache.get(entry[0], entry[1])[1], restored.get(
+						entry[0], entry[1])[1]);
+			}
+
+			// a smaller cache keeps the most recently used words
+			cache.get("walked", "VB");
+			cache.save(snapshot);
+			MorphCache smaller = new MorphCache(1);
+			smaller.warmUp(snapshot.toURI().toURL(), interpret, false);
+			assertTrue(smaller.awaitWarmUp(30, TimeUnit.SECONDS));
+			assertEquals(1, smaller.size());
+			assertEquals("walk", smaller.get("walked", "VB")[0]);
+
+			// stopping a warm up leaves the cache usable
+			restored.warmUp(wordList.toURI().toURL(), interpret, true);
+			restored.stopWarmUp();
+			assertTrue(restored.awaitWarmUp(30, TimeUnit.SECONDS));
+		} finally {
+			wordList.delete();
+			snapshot.delete();
+		}
+	}
+
+	/**
+	 * Test that the ids of the roots are only added, and the vocabulary only
+	 * filled, when asked for, and that a root keeps its id from one document
+	 * to the next
+	 */
+	public void testRootIds() throws Exception {
+		LemmaVocabulary vocabulary = morpher.getVocabulary();
+		assertEquals(0, vocabulary.size());
+		Document first = newTokenDocument("cats", "cat", "dogs");
+		Document second = newTokenDocument("dog", "went", "cats");
+		try {
+			morpher.setConsiderPOSTag(Boolean.FALSE);
+			morpher.setDocument(first);
+			morpher.execute();
+			assertEquals(0, vocabulary.size());
+			assertEquals(Collections.nCopies(3, null), tokenFeatures(first,
+					"rootId"));
+
+			morpher.setRootIdFeatureName("rootId");
+			morpher.execute();
+			assertSame(vocabulary, morpher.getVocabulary());
+			List<Object> firstIds = tokenFeatures(first, "rootId");
+			assertEquals(firstIds.get(0), firstIds.get(1));
+			assertFalse(firstIds.get(0).equals(firstIds.get(2)));
+			assertEquals("cat", vocabulary.getLemma((Integer) firstIds.get(0)));
+
+			morpher.setDocument(second);
+			morpher.execute();
+			List<Object> secondIds = tokenFeatures(second, "rootId");
+			assertEquals(firstIds.get(2), secondIds.get(0));
+			assertEquals(firstIds.get(0), secondIds.get(2));
+			// the literal roots of the rules have ids from the start
+			assertEquals("go", vocabulary.getLemma((Integer) secondIds.get(1)));
+			assertTrue((Integer) secondIds.get(1) < (Integer) firstIds.get(0));
+		} finally {
+			morpher.setRootIdFeatureName(null);
+			Factory.deleteResource(first);
+			Factory.deleteResource(second);
+		}
+	}
+
+	/**
+	 * Test that a duplicate made before root ids are asked for shares the
+	 * vocabulary of the original, so that both give a root the same id
+	 */
+	public void testRootIdsOnDuplicate() throws Exception {
+		Morph duplicate = (Morph) Factory.duplicate(morpher);
+		Document first = newTokenDocument("cats", "dogs", "went");
+		Document second = newTokenDocument("dogs", "walked", "cats");
+		try {
+			assertSame(morpher.getVocabulary(), duplicate.getVocabulary());
+			for (Morph morph : new Morph[] { morpher, duplicate }) {
+				morph.setConsiderPOSTag(Boolean.FALSE);
+				morph.setRootIdFeatureName("rootId");
+			}
+			morpher.setDocument(first);
+			morpher.execute();
+			duplicate.setDocument(second);
+			duplicate.execute();
+			List<Object> firstIds = tokenFeatures(first, "rootId");
+			List<Object> secondIds = tokenFeatures(second, "rootId");
+			assertEquals(firstIds.get(0), secondIds.get(2));
+			assertEquals(firstIds.get(1), secondIds.get(0));
+			assertFalse(secondIds.get(1).equals(firstIds.get(0)));
+			assertEquals("walk", morpher.getVocabulary().getLemma(
+					(Integer) secondIds.get(1)));
+		} finally {
+			morpher.setRootIdFeatureName(null);
+			Factory.deleteResource(duplicate);
+			Factory.deleteResource(first);
+			Factory.deleteResource(second);
+		}
+	}
+
+	/**
+	 * Test that a vocabulary saved to a file and loaded again gives the same
+	 * ids, directly and through the vocabulary file of the PR
+	 */
+	public void testLemmaVocabularyFile() throws Exception {
+		LemmaVocabulary vocabulary = new LemmaVocabulary();
+		vocabulary.addAll(java.util.Arrays.asList("go", "be", "go", "cat"));
+		assertEquals(3, vocabulary.size());
+		File file = File.createTempFile("lemmas", ".txt");
+		try {
+			vocabulary.save(file);
+			LemmaVocabulary loaded = new LemmaVocabulary();
+			loaded.load(file.toURI().toURL());
+			assertEquals(3, loaded.size());
+			for (int id = 0; id < vocabulary.size(); id++) {
+				assertEquals(vocabulary.getLemma(id), loaded.getLemma(id));
+				assertEquals(Integer.valueOf(id), loaded.getId(vocabulary.getLemma(id)));
+			}
+
+			// the PR writes its lemmas back when it is deleted
+			file.delete();
+			FeatureMap params = Factory.newFeatureMap();
+			params.put("lemmaVocabularyFile", file.toURI().toURL());
+			params.put("rootIdFeatureName", "rootId");
+			params.put("considerPOSTag", Boolean.FALSE);
+			Morph first = (Morph) Factory.createResource(
+					"gate.creole.morph.Morph", params);
+			Document document = newTokenDocument("zebras", "cats");
+			Object zebraId;
+			try {
+				first.setDocument(document);
+				first.execute();
+				zebraId = tokenFeatures(document, "rootId").get(0);
+			} finally {
+				Factory.deleteResource(first);
+			}
+			assertTrue(file.exists());
+
+			Morph second = (Morph) Factory.createResource(
+					"gate.creole.morph.Morph", params);
+			try {
+				assertEquals(zebraId, second.getVocabulary().getId("zebra"));
+				second.setDocument(document);
+				second.execute();
+				assertEquals(zebraId, tokenFeatures(document, "rootId").get(0));
+			} finally {
+				Factory.deleteResource(second);
+				Factory.deleteResource(document);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
 	public static Test suite() {
 		return new TestSuite(TestMorph.class);
 	}